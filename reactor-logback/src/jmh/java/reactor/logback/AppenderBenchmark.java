@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.FileAppender;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of a logging call going through {@link AsyncAppender},
+ * {@link DurableAsyncAppender} and Logback's own {@literal AsyncAppender}, in front of
+ * a delegate that does nothing or of a file, under 1 to 64 producer threads.
+ * Throughput mode gives calls per second, sample mode the distribution of the time taken
+ * by a single call, and the {@literal gc} profiler the bytes allocated per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppenderBenchmark {
+
+	@Param({"reactor", "durable", "logback"})
+	String appender;
+
+	@Param({"null", "file"})
+	String delegate;
+
+	Path                    dir;
+	LoggerContext           context;
+	Appender<ILoggingEvent> async;
+	Logger                  logger;
+
+	@Setup(Level.Trial)
+	@SuppressWarnings("unchecked")
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("appender-benchmark");
+		context = new LoggerContext();
+
+		Appender<ILoggingEvent> sink = "file".equals(delegate) ? fileAppender() : new NullAppender();
+		sink.setContext(context);
+		sink.setName("delegate");
+		sink.start();
+
+		async = newAsyncAppender();
+		async.setContext(context);
+		async.setName("async");
+		((AppenderAttachable<ILoggingEvent>) async).addAppender(sink);
+		async.start();
+
+		logger = context.getLogger("benchmark");
+		logger.setAdditive(false);
+		logger.addAppender(async);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		async.stop();
+		context.stop();
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder())
+			     .map(Path::toFile)
+			     .forEach(File::delete);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void producers1() {
+		log();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void producers4() {
+		log();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void producers16() {
+		log();
+	}
+
+	@Benchmark
+	@Threads(64)
+	public void producers64() {
+		log();
+	}
+
+	private void log() {
+		logger.info("user {} logged in from {}", "alice", 42);
+	}
+
+	private Appender<ILoggingEvent> newAsyncAppender() {
+		switch (appender) {
+			case "reactor":
+				AsyncAppender reactor = new AsyncAppender();
+				reactor.setJmx(false);
+				return reactor;
+			case "durable":
+				DurableAsyncAppender durable = new DurableAsyncAppender();
+				durable.setBasePath(dir.toString());
+				durable.setJmx(false);
+				return durable;
+			case "logback":
+				ch.qos.logback.classic.AsyncAppender logback = new ch.qos.logback.classic.AsyncAppender();
+				logback.setQueueSize(1024 * 1024);
+				// never discard, as the other appenders
+				logback.setDiscardingThreshold(0);
+				return logback;
+			default:
+				throw new IllegalArgumentException("Unknown appender " + appender);
+		}
+	}
+
+	private Appender<ILoggingEvent> fileAppender() {
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%d %-5level [%thread] %logger - %msg%n");
+		encoder.start();
+
+		FileAppender<ILoggingEvent> file = new FileAppender<>();
+		file.setFile(dir.resolve("benchmark.log").toString());
+		file.setEncoder(encoder);
+		return file;
+	}
+
+	static final class NullAppender extends AppenderBase<ILoggingEvent> {
+
+		@Override
+		protected void append(ILoggingEvent evt) {
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time from a logging call to its delivery to the delegate for each
+ * {@link ConsumerWaitStrategy}, with events logged back to back ({@code burst}) or
+ * after 100 microseconds of silence ({@code sparse}), when the consumer has to wake
+ * up. The share of a core used by the consumer thread is printed after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WaitStrategyBenchmark {
+
+	static final long SILENCE_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	@Param({"BLOCKING", "BUSY_SPIN", "YIELDING", "PARKING", "PHASED"})
+	ConsumerWaitStrategy waitStrategy;
+
+	LoggerContext    context;
+	AsyncAppender    async;
+	CountingAppender delegate;
+	Logger           logger;
+
+	long iterationStart;
+	long consumerCpuStart;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		context = new LoggerContext();
+		delegate = new CountingAppender();
+		delegate.setContext(context);
+		delegate.start();
+
+		async = new AsyncAppender();
+		async.setContext(context);
+		async.setName("async");
+		async.setJmx(false);
+		async.setWaitStrategy(waitStrategy);
+		async.addAppender(delegate);
+		async.start();
+
+		logger = context.getLogger("benchmark");
+		logger.setAdditive(false);
+		logger.addAppender(async);
+		roundTrip();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		async.stop();
+		context.stop();
+	}
+
+	@Setup(Level.Iteration)
+	public void startIteration() {
+		iterationStart = System.nanoTime();
+		consumerCpuStart = consumerCpu();
+	}
+
+	@TearDown(Level.Iteration)
+	public void endIteration() {
+		double share = (double) (consumerCpu() - consumerCpuStart) / (System.nanoTime() - iterationStart);
+		System.out.printf("consumer CPU: %.0f%% of a core%n", share * 100);
+	}
+
+	@Benchmark
+	public long burst() {
+		return roundTrip();
+	}
+
+	/**
+	 * The measured time includes the 100 microseconds of silence.
+	 */
+	@Benchmark
+	public long sparse() {
+		LockSupport.parkNanos(SILENCE_NANOS);
+		return roundTrip();
+	}
+
+	private long roundTrip() {
+		long seen = delegate.count;
+		logger.info("ping");
+		while (delegate.count == seen) {
+			// leave the core to the consumer on small hosts
+			Thread.yield();
+		}
+		return seen;
+	}
+
+	private long consumerCpu() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		return threads.getThreadCpuTime(delegate.consumerThreadId);
+	}
+
+	static final class CountingAppender extends AppenderBase<ILoggingEvent> {
+
+		volatile long count;
+		volatile long consumerThreadId;
+
+		@Override
+		protected void append(ILoggingEvent evt) {
+			consumerThreadId = Thread.currentThread().getId();
+			count++;
+		}
+	}
+}
@@ -16,12 +16,27 @@
 
 package reactor.logback;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.Context;
 import ch.qos.logback.core.LogbackException;
 import ch.qos.logback.core.filter.Filter;
 import ch.qos.logback.core.spi.AppenderAttachable;
@@ -31,7 +46,11 @@ import ch.qos.logback.core.spi.FilterAttachableImpl;
 import ch.qos.logback.core.spi.FilterReply;
 import org.reactivestreams.Subscription;
 import reactor.core.CoreSubscriber;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.WorkQueueProcessor;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.concurrent.WaitStrategy;
 
 /**
  * A Logback {@literal Appender} implementation that uses a Reactor {@link
@@ -39,13 +58,16 @@ import reactor.core.publisher.WorkQueueProcessor;
  * thread. This implementation doesn't do any actually appending itself, it just delegates
  * to a "real" appender but it uses the efficient queueing mechanism of the {@literal
  * RingBuffer} to do so.
+ * <p>
+ * Queue depth, latencies and counters are exposed through an {@link AsyncAppenderMXBean}
+ * registered while the appender is started.
  *
  * @author Jon Brisbin
  * @author Stephane Maldini
  */
 public class AsyncAppender extends ContextAwareBase
 		implements Appender<ILoggingEvent>, AppenderAttachable<ILoggingEvent>,
-		           CoreSubscriber<ILoggingEvent> {
+		           CoreSubscriber<ILoggingEvent>, AsyncAppenderMXBean {
 
 	private final AppenderAttachableImpl<ILoggingEvent>    aai      =
 			new AppenderAttachableImpl<ILoggingEvent>();
@@ -53,13 +75,91 @@ public class AsyncAppender extends ContextAwareBase
 			new FilterAttachableImpl<ILoggingEvent>();
 	private final AtomicReference<Appender<ILoggingEvent>> delegate =
 			new AtomicReference<Appender<ILoggingEvent>>();
+	private final List<EventTap>                           taps     = new CopyOnWriteArrayList<>();
 
-	private String                            name;
-	private WorkQueueProcessor<ILoggingEvent> processor;
+	/**
+	 * How long {@link #stop()} waits on top of the drain timeout for the consumers to
+	 * abandon what is left and stop the delegates.
+	 */
+	private static final long STOP_GRACE_MILLIS = 1000;
 
-	private int     backlog           = 1024 * 1024;
-	private boolean includeCallerData = false;
-	private boolean started           = false;
+	/**
+	 * Slots a producer tries past its own before copying into a fresh one.
+	 */
+	private static final int MAX_SLOT_PROBES = 64;
+
+	private String                              name;
+	private WorkQueueProcessor<ILoggingEvent>   processor;
+	private WorkQueueProcessor<ILoggingEvent>[] shardProcessors;
+	private Appender<ILoggingEvent>[]           shardAppenders;
+	private LoggingEventSlot[]                  slots;
+	private DelegateLane[]                      lanes;
+	private EventBatcher                        batcher;
+	private CountDownLatch                      completed;
+
+	private int                  backlog            = 1024 * 1024;
+	private boolean              includeCallerData  = false;
+	private int                  callerDepth        = 0;
+	private int                  shards             = 1;
+	private String               shardKey;
+	private boolean              garbageFree        = false;
+	private boolean              deferFormatting    = false;
+	private OverflowPolicy       overflowPolicy     = OverflowPolicy.BLOCK;
+	private ConsumerWaitStrategy waitStrategy       = ConsumerWaitStrategy.BLOCKING;
+	private long                 waitSpinMicros     = 100;
+	private long                 waitYieldMicros    = 1000;
+	private Level                dropThreshold      = Level.WARN;
+	private int                  sampleRate         = 10;
+	private long                 dropReportInterval = 10000;
+	private int                  maxBatchSize       = 1024;
+	private long                 batchLinger        = 0;
+	private long                 drainTimeout       = 0;
+	private boolean              jmx                = true;
+	private boolean              started            = false;
+	private ObjectName           objectName;
+	private List<String>         frameworkPackages;
+
+	private final LongAdder     dropped        = new LongAdder();
+	private final LongAdder     enqueued       = new LongAdder();
+	private final LongAdder     errors         = new LongAdder();
+	private final LongAdder     appended       = new LongAdder();
+	private final LongAdder     tapDropped     = new LongAdder();
+	private final LongAdder     abandoned      = new LongAdder();
+	private final Log2Histogram enqueueLatency = new Log2Histogram();
+	private final Log2Histogram appendLatency  = new Log2Histogram();
+	private       long          reportedDrops;
+	private       long          appendedAtStop;
+
+	// the System.nanoTime() past which the consumers abandon pending events, 0 for none
+	private volatile long drainDeadline;
+
+	volatile int activeShards;
+	static final AtomicIntegerFieldUpdater<AsyncAppender> ACTIVE_SHARDS =
+			AtomicIntegerFieldUpdater.newUpdater(AsyncAppender.class, "activeShards");
+
+	volatile long highWaterMark;
+	static final AtomicLongFieldUpdater<AsyncAppender> HIGH_WATER_MARK =
+			AtomicLongFieldUpdater.newUpdater(AsyncAppender.class, "highWaterMark");
+
+	volatile long slotSequence;
+	static final AtomicLongFieldUpdater<AsyncAppender> SLOT_SEQUENCE =
+			AtomicLongFieldUpdater.newUpdater(AsyncAppender.class, "slotSequence");
+
+	volatile long inFlight;
+	static final AtomicLongFieldUpdater<AsyncAppender> IN_FLIGHT =
+			AtomicLongFieldUpdater.newUpdater(AsyncAppender.class, "inFlight");
+
+	volatile long evictions;
+	static final AtomicLongFieldUpdater<AsyncAppender> EVICTIONS =
+			AtomicLongFieldUpdater.newUpdater(AsyncAppender.class, "evictions");
+
+	volatile long overflows;
+	static final AtomicLongFieldUpdater<AsyncAppender> OVERFLOWS =
+			AtomicLongFieldUpdater.newUpdater(AsyncAppender.class, "overflows");
+
+	volatile long lastDropReport;
+	static final AtomicLongFieldUpdater<AsyncAppender> LAST_DROP_REPORT =
+			AtomicLongFieldUpdater.newUpdater(AsyncAppender.class, "lastDropReport");
 
 	public int getBacklog() {
 		return backlog;
@@ -77,6 +177,390 @@ public class AsyncAppender extends ContextAwareBase
 		this.includeCallerData = includeCallerData;
 	}
 
+	public int getCallerDepth() {
+		return callerDepth;
+	}
+
+	/**
+	 * Only capture the first {@literal callerDepth} frames past the logging framework
+	 * when {@literal includeCallerData} is on, instead of the whole stack trace. Each
+	 * distinct call site is resolved once and shared by the events logged from it, and a
+	 * durable journal stores it as a single id. Defaults to 0, which keeps Logback's own
+	 * caller data.
+	 *
+	 * @param callerDepth the number of caller frames to keep, or 0 for all of them
+	 */
+	public void setCallerDepth(int callerDepth) {
+		this.callerDepth = callerDepth;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * Spread events over this many queues, each drained by its own consumer thread.
+	 * Events are routed by {@literal shardKey}, so the events of one key keep their order
+	 * while different keys are delivered in parallel. When exactly that many delegates
+	 * are attached, each shard feeds its own delegate, otherwise every shard calls all of
+	 * them, which must then be thread-safe. Defaults to 1.
+	 *
+	 * @param shards the number of queues and consumer threads
+	 */
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	public String getShardKey() {
+		return shardKey;
+	}
+
+	/**
+	 * Route events to shards by the value of this MDC key rather than by logger name.
+	 * Events without the key all go to the first shard.
+	 *
+	 * @param shardKey the MDC key to shard on, or null for the logger name
+	 */
+	public void setShardKey(String shardKey) {
+		this.shardKey = shardKey;
+	}
+
+	public boolean isGarbageFree() {
+		return garbageFree;
+	}
+
+	/**
+	 * Pre-allocate {@literal backlog} mutable event slots and copy each event into a
+	 * claimed slot instead of queueing the live event. The delegate then receives a
+	 * reusable view that it must not retain once {@code doAppend} has returned.
+	 *
+	 * @param garbageFree true to queue events through pre-allocated slots
+	 */
+	public void setGarbageFree(boolean garbageFree) {
+		this.garbageFree = garbageFree;
+	}
+
+	public boolean isDeferFormatting() {
+		return deferFormatting;
+	}
+
+	/**
+	 * Leave message formatting to the consumer thread. Instead of preparing the event for
+	 * deferred processing, the producer only captures its thread name, its MDC map and a
+	 * snapshot of the arguments, rendering to strings only those which are not of a
+	 * well-known immutable type. Delegates then receive that snapshot rather than the live
+	 * event.
+	 *
+	 * @param deferFormatting true to format messages on the consumer thread
+	 */
+	public void setDeferFormatting(boolean deferFormatting) {
+		this.deferFormatting = deferFormatting;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Choose what happens to new events once {@literal backlog} events are waiting for
+	 * the delegate. Defaults to {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @param overflowPolicy the policy to apply to a full backlog
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public ConsumerWaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * Choose how consumer threads wait for new events, trading CPU for latency. Defaults
+	 * to {@link ConsumerWaitStrategy#BLOCKING}.
+	 *
+	 * @param waitStrategy the wait strategy of every queue of this appender
+	 */
+	public void setWaitStrategy(ConsumerWaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	public long getWaitSpinMicros() {
+		return waitSpinMicros;
+	}
+
+	/**
+	 * Set how many microseconds {@link ConsumerWaitStrategy#PHASED} busy spins before
+	 * yielding. Defaults to 100.
+	 *
+	 * @param waitSpinMicros the spin time in microseconds
+	 */
+	public void setWaitSpinMicros(long waitSpinMicros) {
+		this.waitSpinMicros = waitSpinMicros;
+	}
+
+	public long getWaitYieldMicros() {
+		return waitYieldMicros;
+	}
+
+	/**
+	 * Set how many microseconds {@link ConsumerWaitStrategy#PHASED} yields before
+	 * blocking. Defaults to 1000.
+	 *
+	 * @param waitYieldMicros the yield time in microseconds
+	 */
+	public void setWaitYieldMicros(long waitYieldMicros) {
+		this.waitYieldMicros = waitYieldMicros;
+	}
+
+	public Level getDropThreshold() {
+		return dropThreshold;
+	}
+
+	/**
+	 * Set the level under which {@link OverflowPolicy#DROP_BELOW_LEVEL} drops events.
+	 * Defaults to {@literal WARN}.
+	 *
+	 * @param dropThreshold the lowest level kept on overflow
+	 */
+	public void setDropThreshold(Level dropThreshold) {
+		this.dropThreshold = dropThreshold;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Set how many overflowing events {@link OverflowPolicy#SAMPLE} sees for each one it
+	 * keeps. Defaults to 10.
+	 *
+	 * @param sampleRate one event kept out of this many
+	 */
+	public void setSampleRate(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public long getDropReportInterval() {
+		return dropReportInterval;
+	}
+
+	/**
+	 * Set the minimum number of milliseconds between two status warnings summarizing
+	 * dropped events. Defaults to 10 seconds.
+	 *
+	 * @param dropReportInterval the report interval in milliseconds
+	 */
+	public void setDropReportInterval(long dropReportInterval) {
+		this.dropReportInterval = dropReportInterval;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Set the largest number of events handed at once to a {@link BatchAppender}
+	 * delegate. Defaults to 1024.
+	 *
+	 * @param maxBatchSize the maximum batch size
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getBatchLinger() {
+		return batchLinger;
+	}
+
+	/**
+	 * Set how many milliseconds a partial batch may wait for more events once the queue
+	 * is drained before being handed to a {@link BatchAppender} delegate. Defaults to 0,
+	 * batches are then delivered as soon as the queue is empty.
+	 *
+	 * @param batchLinger the linger time in milliseconds
+	 */
+	public void setBatchLinger(long batchLinger) {
+		this.batchLinger = batchLinger;
+	}
+
+	public long getDrainTimeout() {
+		return drainTimeout;
+	}
+
+	/**
+	 * Bound how many milliseconds {@link #stop()} spends delivering the events still
+	 * queued. While stopping, delegates get full batches rather than waiting for partial
+	 * ones to linger; once the timeout has passed, the events left are abandoned and
+	 * counted instead of being delivered. Defaults to 0, which returns from stop right
+	 * away and delivers every queued event in the background.
+	 *
+	 * @param drainTimeout the drain deadline in milliseconds, or 0 for none
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = drainTimeout;
+	}
+
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	/**
+	 * Set whether to register an {@link AsyncAppenderMXBean} for this appender with the
+	 * platform MBean server while it is started. Defaults to true.
+	 *
+	 * @param jmx false not to register the MBean
+	 */
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	/**
+	 * @return the number of events dropped by the overflow policy since this appender
+	 * was created
+	 */
+	@Override
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	@Override
+	public long getQueueDepth() {
+		return inFlight;
+	}
+
+	@Override
+	public long getQueueHighWaterMark() {
+		return highWaterMark;
+	}
+
+	@Override
+	public void resetQueueHighWaterMark() {
+		highWaterMark = inFlight;
+	}
+
+	@Override
+	public long getEnqueuedCount() {
+		return enqueued.sum();
+	}
+
+	@Override
+	public long getAppendedCount() {
+		return appended.sum();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	@Override
+	public long[] getEnqueueLatencyHistogram() {
+		return enqueueLatency.snapshot();
+	}
+
+	@Override
+	public long getEnqueueLatency99thPercentileNanos() {
+		return enqueueLatency.quantile(0.99);
+	}
+
+	@Override
+	public long[] getAppendLatencyHistogram() {
+		return appendLatency.snapshot();
+	}
+
+	@Override
+	public long getAppendLatency99thPercentileNanos() {
+		return appendLatency.quantile(0.99);
+	}
+
+	/**
+	 * Tap the events delivered by this appender, see
+	 * {@link #tap(Predicate, int, BufferOverflowStrategy)}. Overflowing events are dropped.
+	 *
+	 * @param filter selects the events of interest, called on the consumer thread
+	 * @param bufferSize the number of events the tap may lag behind
+	 *
+	 * @return a {@link Flux} of the selected events
+	 */
+	public Flux<ILoggingEvent> tap(Predicate<? super ILoggingEvent> filter, int bufferSize) {
+		return tap(filter, bufferSize, BufferOverflowStrategy.DROP_LATEST);
+	}
+
+	/**
+	 * Tap the events delivered by this appender. Each subscription receives the events
+	 * passing the filter as the consumer hands them to the delegates, through its own
+	 * buffer of {@literal bufferSize} events and on its own thread, so that a slow
+	 * subscriber can only ever lose its own events: once its buffer is full, the overflow
+	 * strategy drops an event for that subscriber or terminates it with an error. Events
+	 * are copied if the appender reuses them. Subscriptions complete when the appender
+	 * stops.
+	 *
+	 * @param filter selects the events of interest, called on the consumer thread
+	 * @param bufferSize the number of events a subscriber may lag behind
+	 * @param overflowStrategy what to do with a new event when the buffer is full
+	 *
+	 * @return a {@link Flux} of the selected events
+	 */
+	public Flux<ILoggingEvent> tap(Predicate<? super ILoggingEvent> filter,
+			int bufferSize,
+			BufferOverflowStrategy overflowStrategy) {
+		return Flux.<ILoggingEvent>create(sink -> {
+			EventTap tap = new EventTap(filter, sink);
+			taps.add(tap);
+			sink.onDispose(() -> taps.remove(tap));
+		})
+		           .onBackpressureBuffer(bufferSize, evt -> tapDropped.increment(), overflowStrategy)
+		           .publishOn(Schedulers.elastic());
+	}
+
+	@Override
+	public long getTapDroppedCount() {
+		return tapDropped.sum();
+	}
+
+	@Override
+	public long getAbandonedCount() {
+		long count = abandoned.sum();
+		DelegateLane[] lanes = this.lanes;
+		if (lanes != null) {
+			for (DelegateLane lane : lanes) {
+				count += lane.getAbandonedCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return how many accepted events the given delegate has not processed yet. When
+	 * several delegates are attached this includes the events waiting in its own lane.
+	 *
+	 * @param appenderName the name of an attached appender
+	 *
+	 * @return the number of events the delegate is lagging behind, or -1 if no such
+	 * delegate is attached
+	 */
+	public long getDelegateLag(String appenderName) {
+		DelegateLane lane = findLane(appenderName);
+		if (lane != null) {
+			return inFlight + lane.getLag();
+		}
+		return aai.getAppender(appenderName) != null ? inFlight : -1L;
+	}
+
+	/**
+	 * Return how many events were dropped for the given delegate alone because its lane
+	 * was full. Only delegates fanned out to their own lane ever drop events this way.
+	 *
+	 * @param appenderName the name of an attached appender
+	 *
+	 * @return the number of events dropped in front of that delegate
+	 */
+	public long getDelegateDroppedCount(String appenderName) {
+		DelegateLane lane = findLane(appenderName);
+		return lane != null ? lane.getDroppedCount() : 0L;
+	}
+
 	@Override
 	public String getName() {
 		return name;
@@ -97,14 +581,26 @@ public class AsyncAppender extends ContextAwareBase
 		if (getFilterChainDecision(evt) == FilterReply.DENY) {
 			return;
 		}
-		evt.prepareForDeferredProcessing();
+		if (deferFormatting) {
+			DeferredLoggingEvent.prepare(evt);
+		}
+		else {
+			evt.prepareForDeferredProcessing();
+		}
 		if (includeCallerData) {
-			evt.getCallerData();
+			if (callerDepth > 0 && !evt.hasCallerData()) {
+				// the live event is shared with the other appenders of the logger
+				evt = new CallSiteEvent(evt, CallSites.capture(frameworkPackages, callerDepth));
+			}
+			else {
+				evt.getCallerData();
+			}
 		}
 		try {
 			queueLoggingEvent(evt);
 		}
 		catch (Throwable t) {
+			errors.increment();
 			addError(t.getMessage(), t);
 		}
 	}
@@ -112,46 +608,196 @@ public class AsyncAppender extends ContextAwareBase
 	@Override
 	public void start() {
 		startDelegateAppender();
+		if (getContext() instanceof LoggerContext) {
+			frameworkPackages = ((LoggerContext) getContext()).getFrameworkPackages();
+		}
 
-		processor = WorkQueueProcessor.<ILoggingEvent>builder().name("logger")
-		                                                       .bufferSize(backlog)
-		                                                       .autoCancel(false)
-		                                                       .build();
-		processor.subscribe(this);
-	}
+		// DROP_OLDEST keeps condemned events in the ring until the consumer discards them,
+		// so give it room for a full backlog of them on top of the live ones
+		int bufferSize = overflowPolicy == OverflowPolicy.DROP_OLDEST ? backlog * 2 : backlog;
 
-	@Override
-	public void onSubscribe(Subscription s) {
+		int shardCount = shards;
+		if (shardCount > 1 && !isShardable()) {
+			addWarn("Sharding is not supported by " + getClass().getSimpleName() + ", using a single consumer");
+			shardCount = 1;
+		}
+		@SuppressWarnings("unchecked")
+		WorkQueueProcessor<ILoggingEvent>[] shardProcessors = new WorkQueueProcessor[Math.max(shardCount, 1)];
+		for (int i = 0; i < shardProcessors.length; i++) {
+			shardProcessors[i] = WorkQueueProcessor.<ILoggingEvent>builder().name(shardProcessors.length > 1 ? "logger-" + i : "logger")
+			                                                                .bufferSize(bufferSize)
+			                                                                .share(true)
+			                                                                .autoCancel(false)
+			                                                                .waitStrategy(newWaitStrategy())
+			                                                                .build();
+		}
+		this.shardProcessors = shardProcessors;
+		this.processor = shardProcessors[0];
+		this.activeShards = shardProcessors.length;
+		this.completed = new CountDownLatch(1);
+		this.drainDeadline = 0;
+
+		if (garbageFree) {
+			LoggingEventSlot[] slots = new LoggingEventSlot[bufferSize];
+			for (int i = 0; i < bufferSize; i++) {
+				slots[i] = new LoggingEventSlot();
+			}
+			this.slots = slots;
+		}
+
+		List<Appender<ILoggingEvent>> appenders = new ArrayList<>();
+		iteratorForAppenders().forEachRemaining(appenders::add);
+		if (shardProcessors.length > 1) {
+			if (appenders.size() == shardProcessors.length) {
+				// one delegate per shard
+				@SuppressWarnings("unchecked")
+				Appender<ILoggingEvent>[] shardAppenders = appenders.toArray(new Appender[0]);
+				this.shardAppenders = shardAppenders;
+			}
+			else if (appenders.size() > 1) {
+				this.lanes = startLanes(appenders);
+			}
+			// a batcher is fed by a single consumer, so a lone delegate gets single events
+		}
+		else if (appenders.size() > 1) {
+			this.lanes = startLanes(appenders);
+		}
+		else if (!appenders.isEmpty() && appenders.get(0) instanceof BatchAppender) {
+			batcher = new EventBatcher((BatchAppender<ILoggingEvent>) appenders.get(0),
+					processor,
+					() -> inFlight,
+					this::reserveFlush,
+					maxBatchSize,
+					batchLinger);
+		}
+
+		// before subscribing: producers may queue events as soon as this method returns
 		try {
 			doStart();
 		}
 		catch (Throwable t) {
 			addError(t.getMessage(), t);
 		}
-		finally {
-			started = true;
-			s.request(Long.MAX_VALUE);
+
+		for (WorkQueueProcessor<ILoggingEvent> shard : shardProcessors) {
+			shard.subscribe(this);
+		}
+		if (jmx) {
+			registerMBean();
 		}
 	}
 
+	@Override
+	public void onSubscribe(Subscription s) {
+		started = true;
+		s.request(Long.MAX_VALUE);
+	}
+
 	@Override
 	public void onNext(ILoggingEvent iLoggingEvent) {
-		aai.appendLoopOnAppenders(iLoggingEvent);
+		long deadline = drainDeadline;
+		if (deadline != 0 && iLoggingEvent != EventBatcher.FLUSH && System.nanoTime() - deadline > 0) {
+			// not delivered, so a journal replays it on the next start
+			abandoned.increment();
+			if (iLoggingEvent instanceof LoggingEventSlot) {
+				((LoggingEventSlot) iLoggingEvent).release();
+			}
+			IN_FLIGHT.decrementAndGet(this);
+			return;
+		}
+		EventBatcher batcher = this.batcher;
+		if (iLoggingEvent == EventBatcher.FLUSH || (batcher != null && !evictOldest())) {
+			// only a batcher ever publishes the flush marker
+			if (iLoggingEvent != EventBatcher.FLUSH) {
+				publishToTaps(iLoggingEvent);
+			}
+			long start = System.nanoTime();
+			int flushed = batcher.add(iLoggingEvent);
+			if (flushed > 0) {
+				appendLatency.record((System.nanoTime() - start) / flushed, flushed);
+				appended.add(flushed);
+			}
+			// the flush marker was counted as pending by reserveFlush
+			IN_FLIGHT.addAndGet(this, iLoggingEvent == EventBatcher.FLUSH ? -flushed - 1 : -flushed);
+			delivered(flushed);
+			return;
+		}
+		try {
+			if (batcher == null && !evictOldest()) {
+				DelegateLane[] lanes = this.lanes;
+				Appender<ILoggingEvent>[] shardAppenders = this.shardAppenders;
+				if (shardAppenders != null) {
+					long start = System.nanoTime();
+					shardAppenders[shardOf(iLoggingEvent, shardAppenders.length)].doAppend(iLoggingEvent);
+					appendLatency.record(System.nanoTime() - start);
+				}
+				else if (lanes == null) {
+					long start = System.nanoTime();
+					aai.appendLoopOnAppenders(iLoggingEvent);
+					appendLatency.record(System.nanoTime() - start);
+				}
+				else {
+					// the lanes record the time their delegate takes
+					fanOut(iLoggingEvent, lanes);
+				}
+				appended.increment();
+				publishToTaps(iLoggingEvent);
+			}
+		}
+		catch (Throwable t) {
+			errors.increment();
+			addError(t.getMessage(), t);
+		}
+		finally {
+			if (iLoggingEvent instanceof LoggingEventSlot) {
+				((LoggingEventSlot) iLoggingEvent).release();
+			}
+			IN_FLIGHT.decrementAndGet(this);
+			delivered(1);
+		}
 	}
 
 	@Override
 	public void onError(Throwable t) {
+		errors.increment();
 		addError(t.getMessage(), t);
 	}
 
 	@Override
 	public void onComplete() {
+		if (ACTIVE_SHARDS.decrementAndGet(this) > 0) {
+			// the other shards are still draining
+			return;
+		}
 		try {
 			Appender<ILoggingEvent> appender = delegate.getAndSet(null);
 			if (appender != null){
+				EventBatcher batcher = this.batcher;
+				if (batcher != null) {
+					int flushed = batcher.flush();
+					appended.add(flushed);
+					IN_FLIGHT.addAndGet(this, -flushed);
+					delivered(flushed);
+				}
+				DelegateLane[] lanes = this.lanes;
+				if (lanes != null) {
+					// each lane stops its delegate once it has drained
+					for (DelegateLane lane : lanes) {
+						lane.complete();
+						aai.detachAppender(lane.appender);
+					}
+					// so that doStop() sees what the lanes delivered or abandoned
+					awaitLanes(lanes);
+				}
 				doStop();
-				appender.stop();
-				aai.detachAndStopAllAppenders();
+				for (EventTap tap : taps) {
+					tap.complete();
+				}
+				if (lanes == null) {
+					appender.stop();
+					aai.detachAndStopAllAppenders();
+				}
+				reportDrain();
 			}
 		}
 		catch (Throwable t) {
@@ -159,19 +805,160 @@ public class AsyncAppender extends ContextAwareBase
 		}
 		finally {
 			started = false;
+			completed.countDown();
+		}
+	}
+
+	private void awaitLanes(DelegateLane[] lanes) throws InterruptedException {
+		long deadline = drainDeadline;
+		for (DelegateLane lane : lanes) {
+			if (deadline == 0) {
+				// no drain timeout, the caller of stop() is not waiting for this thread
+				lane.awaitCompletion(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				continue;
+			}
+			long wait = deadline - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_GRACE_MILLIS);
+			if (!lane.awaitCompletion(Math.max(wait, 0), TimeUnit.NANOSECONDS)) {
+				addWarn("Delegate [" + lane.appender.getName() + "] is still busy past the drain deadline");
+			}
+		}
+	}
+
+	private void reportDrain() {
+		long drained = appended.sum() - appendedAtStop;
+		long abandoned = getAbandonedCount();
+		if (abandoned > 0) {
+			addWarn("Drained " + drained + " logging events on stop and abandoned " + abandoned
+					+ " past the drain timeout of " + drainTimeout + "ms");
+		}
+		else if (drained > 0) {
+			addInfo("Drained " + drained + " logging events on stop");
 		}
 	}
 
 	private void startDelegateAppender() {
-		Appender<ILoggingEvent> delegateAppender = delegate.get();
-		if (null != delegateAppender && !delegateAppender.isStarted()) {
-			delegateAppender.start();
+		Iterator<Appender<ILoggingEvent>> it = aai.iteratorForAppenders();
+		while (it.hasNext()) {
+			Appender<ILoggingEvent> delegateAppender = it.next();
+			if (!delegateAppender.isStarted()) {
+				delegateAppender.start();
+			}
+		}
+	}
+
+	private void fanOut(ILoggingEvent evt, DelegateLane[] lanes) {
+		if (evt instanceof LoggingEventSlot) {
+			((LoggingEventSlot) evt).retain(lanes.length);
+		}
+		long mark = laneMark();
+		boolean blockWhenFull = overflowPolicy == OverflowPolicy.BLOCK ||
+				(overflowPolicy == OverflowPolicy.DROP_BELOW_LEVEL && evt.getLevel()
+				                                                         .isGreaterOrEqual(dropThreshold));
+		for (DelegateLane lane : lanes) {
+			if (!lane.offer(evt, blockWhenFull, mark) && evt instanceof LoggingEventSlot) {
+				((LoggingEventSlot) evt).release();
+			}
+		}
+	}
+
+	private WaitStrategy newWaitStrategy() {
+		return waitStrategy.newWaitStrategy(waitSpinMicros, waitYieldMicros);
+	}
+
+	private void publishToTaps(ILoggingEvent evt) {
+		List<EventTap> taps = this.taps;
+		if (taps.isEmpty()) {
+			return;
+		}
+		for (EventTap tap : taps) {
+			tap.offer(evt);
+		}
+	}
+
+	private DelegateLane[] startLanes(List<Appender<ILoggingEvent>> appenders) {
+		DelegateLane[] lanes = new DelegateLane[appenders.size()];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new DelegateLane(appenders.get(i),
+					backlog,
+					maxBatchSize,
+					batchLinger,
+					newWaitStrategy(),
+					appendLatency,
+					tracksLanes());
+			lanes[i].start();
+		}
+		return lanes;
+	}
+
+	private int shardOf(ILoggingEvent evt, int shardCount) {
+		String key;
+		if (shardKey == null) {
+			key = evt.getLoggerName();
+		}
+		else {
+			Map<String, String> mdc = evt.getMDCPropertyMap();
+			key = (null != mdc ? mdc.get(shardKey) : null);
 		}
+		if (key == null) {
+			return 0;
+		}
+		int h = key.hashCode();
+		return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shardCount;
+	}
+
+	private DelegateLane findLane(String appenderName) {
+		DelegateLane[] lanes = this.lanes;
+		if (lanes != null) {
+			for (DelegateLane lane : lanes) {
+				if (lane.appender.getName().equals(appenderName)) {
+					return lane;
+				}
+			}
+		}
+		return null;
 	}
 
 	@Override
 	public void stop() {
-		processor.onComplete();
+		long depth = inFlight;
+		if (depth > 0) {
+			addInfo("Stopping with " + depth + " logging events in flight");
+		}
+		appendedAtStop = appended.sum();
+		long timeout = drainTimeout;
+		long deadline = 0;
+		if (timeout > 0) {
+			// never 0, which stands for no deadline
+			deadline = (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)) | 1;
+			drainDeadline = deadline;
+		}
+		EventBatcher batcher = this.batcher;
+		if (batcher != null) {
+			batcher.drain();
+		}
+		DelegateLane[] lanes = this.lanes;
+		if (lanes != null) {
+			for (DelegateLane lane : lanes) {
+				lane.drain(deadline);
+			}
+		}
+		for (WorkQueueProcessor<ILoggingEvent> shard : shardProcessors) {
+			shard.onComplete();
+		}
+		if (timeout > 0) {
+			try {
+				// lanes are awaited by the consumer before it completes
+				long grace = STOP_GRACE_MILLIS * (lanes != null ? 2 : 1);
+				if (!completed.await(timeout + grace, TimeUnit.MILLISECONDS)) {
+					addWarn("Still delivering logging events past the drain timeout of " + timeout + "ms");
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		reportDrops(true);
+		unregisterMBean();
 	}
 
 	@Override
@@ -194,14 +981,19 @@ public class AsyncAppender extends ContextAwareBase
 		return fai.getFilterChainDecision(event);
 	}
 
+	/**
+	 * Attach a delegate appender. When several delegates are attached by the time this
+	 * appender starts, each of them is fed by its own queue of {@literal backlog} events
+	 * and its own consumer thread so that a slow delegate does not hold back the others.
+	 * Once a delegate's queue is full, the {@link OverflowPolicy} decides whether to wait
+	 * for it or to drop the event for that delegate only.
+	 *
+	 * @param newAppender the delegate to attach
+	 */
 	@Override
 	public void addAppender(Appender<ILoggingEvent> newAppender) {
-		if (delegate.compareAndSet(null, newAppender)) {
-			aai.addAppender(newAppender);
-		}
-		else {
-			throw new IllegalArgumentException(delegate.get() + " already attached.");
-		}
+		delegate.compareAndSet(null, newAppender);
+		aai.addAppender(newAppender);
 	}
 
 	@Override
@@ -245,9 +1037,271 @@ public class AsyncAppender extends ContextAwareBase
 	}
 
 	protected void queueLoggingEvent(ILoggingEvent evt) {
-		if (null != delegate.get()) {
+		offer(evt);
+	}
+
+	/**
+	 * Queue an event for the consumer, applying the overflow policy.
+	 *
+	 * @param evt the event to queue
+	 *
+	 * @return true if the event was queued, false if it was dropped
+	 */
+	boolean offer(ILoggingEvent evt) {
+		if (null == delegate.get()) {
+			return false;
+		}
+		if (!tryAcquire(evt)) {
+			dropped.increment();
+			reportDrops(false);
+			return false;
+		}
+		long start = System.nanoTime();
+		WorkQueueProcessor<ILoggingEvent>[] shardProcessors = this.shardProcessors;
+		WorkQueueProcessor<ILoggingEvent> processor = (shardProcessors.length > 1
+				? shardProcessors[shardOf(evt, shardProcessors.length)]
+				: shardProcessors[0]);
+		LoggingEventSlot[] slots = this.slots;
+		if (slots != null) {
+			LoggingEventSlot slot = claimSlot(slots);
+			slot.copyFrom(evt, includeCallerData, deferFormatting);
+			processor.onNext(slot);
+		}
+		else if (deferFormatting) {
+			processor.onNext(new DeferredLoggingEvent(evt, includeCallerData));
+		}
+		else {
 			processor.onNext(evt);
 		}
+		enqueueLatency.record(System.nanoTime() - start);
+		enqueued.increment();
+		return true;
+	}
+
+	/**
+	 * Called by the consumer once queued events are done with, in queue order: appended,
+	 * handed to the delegate lanes or discarded by {@link OverflowPolicy#DROP_OLDEST}.
+	 *
+	 * @param count the number of events, possibly 0
+	 */
+	void delivered(int count) {
+	}
+
+	/**
+	 * @return false if events must be delivered in the order they were queued, so that
+	 * {@link #delivered(int)} only ever sees one consumer
+	 */
+	boolean isShardable() {
+		return true;
+	}
+
+	/**
+	 * @return true if the delegate lanes keep the {@link #laneMark()} of their events, for
+	 * {@link #lanesDoneUpTo(long)}
+	 */
+	boolean tracksLanes() {
+		return false;
+	}
+
+	/**
+	 * Called by the consumer before handing an event to the delegate lanes.
+	 *
+	 * @return the mark of the event the lanes report once they are done with it
+	 */
+	long laneMark() {
+		return 0L;
+	}
+
+	/**
+	 * Called by the consumer, which hands events to the delegate lanes.
+	 *
+	 * @param mark the mark of the last event handed to the lanes
+	 *
+	 * @return the mark of the last event every lane is done with, at most {@literal mark}
+	 */
+	long lanesDoneUpTo(long mark) {
+		DelegateLane[] lanes = this.lanes;
+		if (lanes == null) {
+			return mark;
+		}
+		for (DelegateLane lane : lanes) {
+			// a lane which abandoned events never gets done with them
+			if (lane.getLag() > 0 || lane.getAbandonedCount() > 0) {
+				mark = Math.min(mark, lane.getDoneMark());
+			}
+		}
+		return mark;
+	}
+
+	/**
+	 * @return the capacity of the queue, only known once started
+	 */
+	int getBufferSize() {
+		return processor.getBufferSize();
+	}
+
+	/**
+	 * Account for a new event against the {@literal backlog}, applying the overflow
+	 * policy if it is full.
+	 *
+	 * @param evt the event about to be queued
+	 *
+	 * @return true if the event should be queued, false if it must be dropped
+	 */
+	private boolean tryAcquire(ILoggingEvent evt) {
+		for (; ; ) {
+			long n = inFlight;
+			if (n - evictions >= backlog) {
+				break;
+			}
+			if (IN_FLIGHT.compareAndSet(this, n, n + 1)) {
+				admitted(n + 1);
+				return true;
+			}
+		}
+
+		switch (overflowPolicy) {
+			case DROP_NEW:
+				return false;
+			case DROP_OLDEST:
+				for (; ; ) {
+					long e = evictions;
+					if (e >= backlog) {
+						return false;
+					}
+					if (EVICTIONS.compareAndSet(this, e, e + 1)) {
+						admitted(IN_FLIGHT.incrementAndGet(this));
+						return true;
+					}
+				}
+			case DROP_BELOW_LEVEL:
+				if (!evt.getLevel().isGreaterOrEqual(dropThreshold)) {
+					return false;
+				}
+				break;
+			case SAMPLE:
+				if (OVERFLOWS.getAndIncrement(this) % sampleRate != 0) {
+					return false;
+				}
+				break;
+			default:
+				break;
+		}
+		// blocking admission, processor.onNext will wait for the consumer
+		admitted(IN_FLIGHT.incrementAndGet(this));
+		return true;
+	}
+
+	/**
+	 * Claim a free slot, starting from the next one in sequence. Slots are freed out of
+	 * order: one can still be held by a slow delegate lane, or queued on a slow shard,
+	 * while the ring has wrapped around. Rather than waiting for it and blocking the
+	 * application thread whatever the overflow policy, the producer moves on to the next
+	 * slots and, if they are all held too, copies the event into a slot of its own.
+	 */
+	private LoggingEventSlot claimSlot(LoggingEventSlot[] slots) {
+		long seq = SLOT_SEQUENCE.getAndIncrement(this);
+		int mask = slots.length - 1;
+		for (int i = 0; i < MAX_SLOT_PROBES; i++) {
+			LoggingEventSlot slot = slots[(int) ((seq + i) & mask)];
+			if (slot.tryClaim()) {
+				return slot;
+			}
+		}
+		LoggingEventSlot slot = new LoggingEventSlot();
+		slot.tryClaim();
+		return slot;
+	}
+
+	private boolean reserveFlush() {
+		for (; ; ) {
+			long n = inFlight;
+			if (n - evictions >= backlog) {
+				return false;
+			}
+			if (IN_FLIGHT.compareAndSet(this, n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void admitted(long depth) {
+		// a plain read on the common path, the mark only moves when the queue grows
+		for (long mark; depth > (mark = highWaterMark); ) {
+			if (HIGH_WATER_MARK.compareAndSet(this, mark, depth)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Discard the event at the head of the queue if a {@link OverflowPolicy#DROP_OLDEST}
+	 * producer condemned it.
+	 *
+	 * @return true if the current event must not be delivered
+	 */
+	private boolean evictOldest() {
+		for (; ; ) {
+			long e = evictions;
+			if (e == 0) {
+				return false;
+			}
+			if (EVICTIONS.compareAndSet(this, e, e - 1)) {
+				dropped.increment();
+				reportDrops(false);
+				return true;
+			}
+		}
+	}
+
+	private void registerMBean() {
+		try {
+			Context context = getContext();
+			ObjectName objectName = new ObjectName("reactor.logback:type=" + getClass().getSimpleName()
+					+ ",context=" + ObjectName.quote(null != context && null != context.getName() ? context.getName() : "default")
+					+ ",name=" + ObjectName.quote(String.valueOf(name)));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				addWarn("An MBean is already registered as " + objectName + ", not registering this appender");
+				return;
+			}
+			server.registerMBean(this, objectName);
+			this.objectName = objectName;
+		}
+		catch (Throwable t) {
+			addWarn("Failed to register the appender MBean: " + t.getMessage(), t);
+		}
+	}
+
+	private void unregisterMBean() {
+		ObjectName objectName = this.objectName;
+		if (objectName == null) {
+			return;
+		}
+		this.objectName = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (Throwable t) {
+			addWarn("Failed to unregister the appender MBean: " + t.getMessage(), t);
+		}
+	}
+
+	private void reportDrops(boolean force) {
+		long now = System.currentTimeMillis();
+		long last = lastDropReport;
+		if (!force && now - last < dropReportInterval) {
+			return;
+		}
+		if (!LAST_DROP_REPORT.compareAndSet(this, last, now)) {
+			return;
+		}
+		long total = dropped.sum();
+		long delta = total - reportedDrops;
+		reportedDrops = total;
+		if (delta > 0) {
+			addWarn("Dropped " + delta + " logging events with overflow policy " + overflowPolicy + " (" + total + " since start)");
+		}
 	}
 
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+/**
+ * The management interface of an {@link AsyncAppender}, registered with the platform
+ * MBean server as {@literal reactor.logback:type=AsyncAppender,context=...,name=...}
+ * while the appender is started.
+ * <p>
+ * Latency histograms are arrays of 64 counts, element {@literal i} counting the
+ * durations between 2^(i-1) and 2^i nanoseconds.
+ */
+public interface AsyncAppenderMXBean {
+
+	/**
+	 * @return the maximum number of events waiting for the delegates
+	 */
+	int getBacklog();
+
+	/**
+	 * @return the number of events accepted and not yet done with by the consumer
+	 */
+	long getQueueDepth();
+
+	/**
+	 * @return the highest queue depth since start or the last reset
+	 */
+	long getQueueHighWaterMark();
+
+	/**
+	 * Restart tracking the highest queue depth from the current one.
+	 */
+	void resetQueueHighWaterMark();
+
+	/**
+	 * @return the number of events queued since start
+	 */
+	long getEnqueuedCount();
+
+	/**
+	 * @return the number of events handed to the delegates since start
+	 */
+	long getAppendedCount();
+
+	/**
+	 * @return the number of events dropped by the overflow policy since start
+	 */
+	long getDroppedCount();
+
+	/**
+	 * @return the number of failures to queue or append an event since start
+	 */
+	long getErrorCount();
+
+	/**
+	 * @return the number of events dropped by full {@link AsyncAppender#tap taps} since start
+	 */
+	long getTapDroppedCount();
+
+	/**
+	 * @return the number of events left undelivered when the drain timeout ran out on stop
+	 */
+	long getAbandonedCount();
+
+	/**
+	 * @return how long producers took to queue an event, waits for room included
+	 */
+	long[] getEnqueueLatencyHistogram();
+
+	/**
+	 * @return an upper bound of the 99th percentile of {@link #getEnqueueLatencyHistogram()}
+	 */
+	long getEnqueueLatency99thPercentileNanos();
+
+	/**
+	 * @return how long the delegates took to append an event, averaged over the batch for
+	 * {@link BatchAppender}s
+	 */
+	long[] getAppendLatencyHistogram();
+
+	/**
+	 * @return an upper bound of the 99th percentile of {@link #getAppendLatencyHistogram()}
+	 */
+	long getAppendLatency99thPercentileNanos();
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.List;
+
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.LogbackException;
+
+/**
+ * An {@link Appender} able to take a whole burst of events at once. When a delegate of an
+ * {@link AsyncAppender} implements this contract, the consumer hands it every event
+ * drained from the queue in one go (up to {@literal maxBatchSize}, waiting at most
+ * {@literal batchLinger} milliseconds for more) so that it can write and flush once per
+ * batch rather than once per event.
+ *
+ * @param <E> the event type
+ */
+public interface BatchAppender<E> extends Appender<E> {
+
+	/**
+	 * Append a batch of events, in queue order. The list is reused once this method
+	 * returns and, in garbage-free mode, so are the events: implementations must not
+	 * keep a reference to either.
+	 *
+	 * @param events the events to append
+	 *
+	 * @throws LogbackException if the batch could not be appended
+	 */
+	void doAppendBatch(List<E> events) throws LogbackException;
+
+}
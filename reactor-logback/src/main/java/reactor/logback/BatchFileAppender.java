@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.IOException;
+import java.util.List;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.FileAppender;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import ch.qos.logback.core.spi.FilterReply;
+import ch.qos.logback.core.status.ErrorStatus;
+
+/**
+ * A Logback {@link FileAppender} that encodes a whole batch under a single lock
+ * acquisition and flushes the file once per batch instead of once per event. Meant to be
+ * used as the delegate of an {@link AsyncAppender}, events appended one by one are still
+ * flushed immediately.
+ */
+public class BatchFileAppender extends FileAppender<ILoggingEvent>
+		implements BatchAppender<ILoggingEvent> {
+
+	@Override
+	public void start() {
+		if (encoder instanceof LayoutWrappingEncoder) {
+			// flushing is driven by this appender, per event or per batch
+			((LayoutWrappingEncoder<ILoggingEvent>) encoder).setImmediateFlush(false);
+		}
+		super.start();
+	}
+
+	@Override
+	protected void writeOut(ILoggingEvent event) throws IOException {
+		super.writeOut(event);
+		getOutputStream().flush();
+	}
+
+	@Override
+	public void doAppendBatch(List<ILoggingEvent> events) {
+		if (!isStarted()) {
+			return;
+		}
+		lock.lock();
+		try {
+			for (ILoggingEvent evt : events) {
+				if (getFilterChainDecision(evt) != FilterReply.DENY) {
+					super.writeOut(evt);
+				}
+			}
+			getOutputStream().flush();
+		}
+		catch (IOException ioe) {
+			started = false;
+			addStatus(new ErrorStatus("IO failure in appender", this, ioe));
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+import java.util.Map;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import org.slf4j.Marker;
+
+/**
+ * A live event along with the bounded call site captured for it by an
+ * {@link AsyncAppender} with a {@literal callerDepth}, so that the caller data is
+ * queued without being set on the live event, which other appenders of the logger share.
+ * Everything else is read from the live event.
+ */
+final class CallSiteEvent implements ILoggingEvent {
+
+	private final ILoggingEvent       evt;
+	private final StackTraceElement[] callerData;
+
+	/**
+	 * @param evt the live event
+	 * @param callerData the bounded call site
+	 */
+	CallSiteEvent(ILoggingEvent evt, StackTraceElement[] callerData) {
+		this.evt = evt;
+		this.callerData = callerData;
+	}
+
+	@Override
+	public String getThreadName() {
+		return evt.getThreadName();
+	}
+
+	@Override
+	public Level getLevel() {
+		return evt.getLevel();
+	}
+
+	@Override
+	public String getMessage() {
+		return evt.getMessage();
+	}
+
+	@Override
+	public Object[] getArgumentArray() {
+		return evt.getArgumentArray();
+	}
+
+	@Override
+	public String getFormattedMessage() {
+		return evt.getFormattedMessage();
+	}
+
+	@Override
+	public String getLoggerName() {
+		return evt.getLoggerName();
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return evt.getLoggerContextVO();
+	}
+
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		return evt.getThrowableProxy();
+	}
+
+	@Override
+	public StackTraceElement[] getCallerData() {
+		return callerData;
+	}
+
+	@Override
+	public boolean hasCallerData() {
+		return true;
+	}
+
+	@Override
+	public Marker getMarker() {
+		return evt.getMarker();
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		return evt.getMDCPropertyMap();
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
+		return evt.getMDCPropertyMap();
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return evt.getTimeStamp();
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+		evt.prepareForDeferredProcessing();
+	}
+
+	@Override
+	public String toString() {
+		return evt.toString();
+	}
+}
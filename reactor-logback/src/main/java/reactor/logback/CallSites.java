@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.CallerData;
+
+/**
+ * Bounded caller data capture. The stack is still captured on every call, which is most
+ * of the cost of caller data. On JDK 8, the frames are then read one by one from the
+ * captured stack, so that only those up to the caller and the first ones past the logging
+ * framework are resolved to {@link StackTraceElement}s; later JDKs hide that access and
+ * the whole stack trace is materialized. Each distinct call site is interned so that
+ * repeated log lines share one array, which the journal identifies by a single dictionary
+ * id.
+ */
+final class CallSites {
+
+	/**
+	 * Interned call sites past which new ones are no longer interned.
+	 */
+	static final int MAX_CALL_SITES = 4096;
+
+	private static final ConcurrentMap<Key, StackTraceElement[]> SITES = new ConcurrentHashMap<>();
+
+	private static final MethodHandle STACK_DEPTH;
+	private static final MethodHandle STACK_ELEMENT;
+
+	static {
+		MethodHandle depth = null;
+		MethodHandle element = null;
+		try {
+			Method d = Throwable.class.getDeclaredMethod("getStackTraceDepth");
+			Method e = Throwable.class.getDeclaredMethod("getStackTraceElement", int.class);
+			d.setAccessible(true);
+			e.setAccessible(true);
+			depth = MethodHandles.lookup().unreflect(d);
+			element = MethodHandles.lookup().unreflect(e);
+		}
+		catch (Exception | LinkageError e) {
+			// not available on this JDK, fall back to the full stack trace
+		}
+		STACK_DEPTH = depth;
+		STACK_ELEMENT = element;
+	}
+
+	private CallSites() {
+	}
+
+	/**
+	 * Capture the caller of the current logging call.
+	 *
+	 * @param frameworkPackages packages whose frames are skipped like the logger's, or null
+	 * @param depth the number of caller frames to keep
+	 *
+	 * @return the interned call site, or an empty array if no caller was found
+	 */
+	static StackTraceElement[] capture(List<String> frameworkPackages, int depth) {
+		Throwable t = new Throwable();
+		if (null != STACK_ELEMENT) {
+			try {
+				return capture(t, frameworkPackages, depth);
+			}
+			catch (Throwable ignored) {
+				// fall through to the full stack trace
+			}
+		}
+		return extract(t.getStackTrace(), frameworkPackages, depth);
+	}
+
+	/**
+	 * @return true if the frames are a call site returned by {@link #capture(List, int)}
+	 */
+	static boolean isInterned(StackTraceElement[] frames) {
+		return frames.length > 0 && SITES.get(new Key(frames)) == frames;
+	}
+
+	/**
+	 * Encode a call site as a single dictionary name.
+	 */
+	static String encode(StackTraceElement[] frames) {
+		StringBuilder sb = new StringBuilder(frames.length * 64);
+		for (StackTraceElement frame : frames) {
+			if (sb.length() > 0) {
+				sb.append('\n');
+			}
+			sb.append(frame.getClassName())
+			  .append('\t')
+			  .append(frame.getMethodName())
+			  .append('\t')
+			  .append(null != frame.getFileName() ? frame.getFileName() : "")
+			  .append('\t')
+			  .append(frame.getLineNumber());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decode a call site encoded by {@link #encode(StackTraceElement[])}.
+	 */
+	static StackTraceElement[] decode(String encoded) {
+		String[] lines = encoded.split("\n");
+		StackTraceElement[] frames = new StackTraceElement[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			String[] fields = lines[i].split("\t", -1);
+			frames[i] = new StackTraceElement(fields[0],
+					fields[1],
+					fields[2].isEmpty() ? null : fields[2],
+					Integer.parseInt(fields[3]));
+		}
+		return frames;
+	}
+
+	private static StackTraceElement[] capture(Throwable t, List<String> frameworkPackages, int depth)
+			throws Throwable {
+		int stackDepth = (int) STACK_DEPTH.invoke(t);
+		int i = 0;
+		// up to the logger, then past it and any framework frame
+		while (i < stackDepth && !Logger.FQCN.equals(element(t, i).getClassName())) {
+			i++;
+		}
+		StackTraceElement frame = null;
+		while (i < stackDepth && isFramework((frame = element(t, i)).getClassName(), frameworkPackages)) {
+			i++;
+		}
+		if (i >= stackDepth) {
+			return CallerData.EMPTY_CALLER_DATA_ARRAY;
+		}
+		StackTraceElement[] frames = new StackTraceElement[Math.min(depth, stackDepth - i)];
+		frames[0] = frame;
+		for (int j = 1; j < frames.length; j++) {
+			frames[j] = element(t, i + j);
+		}
+		return intern(frames);
+	}
+
+	private static StackTraceElement[] extract(StackTraceElement[] stack, List<String> frameworkPackages, int depth) {
+		int i = 0;
+		while (i < stack.length && !Logger.FQCN.equals(stack[i].getClassName())) {
+			i++;
+		}
+		while (i < stack.length && isFramework(stack[i].getClassName(), frameworkPackages)) {
+			i++;
+		}
+		if (i >= stack.length) {
+			return CallerData.EMPTY_CALLER_DATA_ARRAY;
+		}
+		return intern(Arrays.copyOfRange(stack, i, Math.min(stack.length, i + depth)));
+	}
+
+	private static StackTraceElement element(Throwable t, int i) throws Throwable {
+		return (StackTraceElement) STACK_ELEMENT.invoke(t, i);
+	}
+
+	private static boolean isFramework(String className, List<String> frameworkPackages) {
+		if (Logger.FQCN.equals(className)) {
+			return true;
+		}
+		if (null != frameworkPackages) {
+			for (String pkg : frameworkPackages) {
+				if (className.startsWith(pkg)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static StackTraceElement[] intern(StackTraceElement[] frames) {
+		Key key = new Key(frames);
+		StackTraceElement[] site = SITES.get(key);
+		if (null != site) {
+			return site;
+		}
+		if (SITES.size() >= MAX_CALL_SITES) {
+			return frames;
+		}
+		site = SITES.putIfAbsent(key, frames);
+		return null != site ? site : frames;
+	}
+
+	private static final class Key {
+
+		private final StackTraceElement[] frames;
+		private final int                 hash;
+
+		Key(StackTraceElement[] frames) {
+			this.frames = frames;
+			this.hash = Arrays.hashCode(frames);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(frames, ((Key) o).frames);
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import net.openhft.chronicle.Chronicle;
+import net.openhft.chronicle.ChronicleQueueBuilder;
+import net.openhft.chronicle.ExcerptTailer;
+import net.openhft.lang.io.DirectBytes;
+import net.openhft.lang.io.DirectStore;
+import net.openhft.lang.io.NativeBytes;
+
+/**
+ * A closed {@link JournalCycles journal cycle} compressed into a single file, which
+ * readers open instead of its chronicle. The excerpts are grouped into frames of about
+ * {@link #FRAME_SIZE} bytes, each compressed with {@link Lz4} on its own, and a table at
+ * the end of the file gives the first excerpt and the offset of every frame. Tailers keep
+ * the excerpt indices of the chronicle, so the journal index and journal positions stay
+ * valid, and only decompress the frames they are positioned in.
+ */
+final class CompressedCycle {
+
+	static final String SUFFIX = ".lz4";
+
+	static final int FRAME_SIZE = 64 * 1024;
+
+	private static final int MAGIC  = 0x4A4C5A31;
+	private static final int HEADER = 4;
+
+	private final RandomAccessFile file;
+	private final FileChannel      channel;
+	private final long             entries;
+	private final long[]           firstIndices;
+	private final long[]           offsets;
+
+	/**
+	 * @param path the base path of the cycle
+	 *
+	 * @throws IOException if the compressed cycle cannot be opened
+	 */
+	CompressedCycle(String path) throws IOException {
+		this.file = new RandomAccessFile(path + SUFFIX, "r");
+		this.channel = file.getChannel();
+		try {
+			long length = channel.size();
+			ByteBuffer head = readFrom(channel, 0, HEADER);
+			long tableAt = readFrom(channel, length - 8, 8).getLong();
+			if (head.getInt() != MAGIC || tableAt < HEADER || tableAt > length - 20) {
+				throw new IOException("Not a compressed journal cycle: " + path + SUFFIX);
+			}
+			ByteBuffer table = readFrom(channel, tableAt, (int) (length - 8 - tableAt));
+			this.entries = table.getLong();
+			int frames = table.getInt();
+			this.firstIndices = new long[frames];
+			this.offsets = new long[frames];
+			for (int f = 0; f < frames; f++) {
+				firstIndices[f] = table.getLong();
+				offsets[f] = table.getLong();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if the cycle at this base path has been compressed
+	 */
+	static boolean exists(String path) {
+		return new File(path + SUFFIX).exists();
+	}
+
+	/**
+	 * Compress a closed cycle, then delete its chronicle. The compressed file is only
+	 * renamed into place once complete and on disk, so that a cycle is readable as one or
+	 * the other at any time.
+	 *
+	 * @param path the base path of the cycle, which must not be written anymore
+	 *
+	 * @return the length of the compressed file
+	 *
+	 * @throws IOException if the cycle cannot be read or the compressed file written
+	 */
+	static long compress(String path) throws IOException {
+		File target = new File(path + SUFFIX);
+		if (!target.exists()) {
+			File tmp = new File(path + SUFFIX + ".tmp");
+			Chronicle chronicle = ChronicleQueueBuilder.indexed(path).build();
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, FRAME_SIZE));
+				new FrameWriter(out).write(chronicle);
+				out.flush();
+				fos.getFD().sync();
+			}
+			finally {
+				chronicle.close();
+			}
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		// the index first, a chronicle without it is not opened anymore
+		Files.deleteIfExists(new File(path + ".index").toPath());
+		Files.deleteIfExists(new File(path + ".data").toPath());
+		return target.length();
+	}
+
+	/**
+	 * @return the number of excerpts of the cycle
+	 */
+	long size() {
+		return entries;
+	}
+
+	/**
+	 * @return a new tailer, to be closed once done with
+	 */
+	ExcerptTailer createTailer() {
+		return new Tailer();
+	}
+
+	void close() throws IOException {
+		file.close();
+	}
+
+	private static ByteBuffer readFrom(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFrom(channel, position, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void readFrom(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Truncated compressed journal cycle");
+			}
+		}
+	}
+
+	/**
+	 * Cuts the excerpts of a chronicle into compressed frames.
+	 */
+	static final class FrameWriter {
+
+		final DataOutputStream out;
+
+		int[]  lengths = new int[256];
+		byte[] data    = new byte[2 * FRAME_SIZE];
+		byte[] raw     = new byte[0];
+		byte[] compressed = new byte[0];
+		int    count;
+		int    dataLength;
+		long   firstIndex;
+		long   offset  = HEADER;
+		long[] firstIndices = new long[64];
+		long[] offsets = new long[64];
+		int    frames;
+
+		FrameWriter(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write(Chronicle chronicle) throws IOException {
+			out.writeInt(MAGIC);
+			long entries = chronicle.size();
+			ExcerptTailer tailer = chronicle.createTailer();
+			try {
+				for (long i = 0; i < entries; i++) {
+					if (count == 0) {
+						firstIndex = i;
+					}
+					if (count == lengths.length) {
+						lengths = Arrays.copyOf(lengths, count * 2);
+					}
+					if (!tailer.index(i)) {
+						// padding, cannot be positioned on either once compressed
+						lengths[count++] = -1;
+						continue;
+					}
+					int length = (int) tailer.remaining();
+					if (dataLength + length > data.length) {
+						data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+					}
+					tailer.readFully(data, dataLength, length);
+					tailer.finish();
+					lengths[count++] = length;
+					dataLength += length;
+					if (dataLength >= FRAME_SIZE) {
+						flush();
+					}
+				}
+				flush();
+			}
+			finally {
+				tailer.close();
+			}
+
+			out.writeLong(entries);
+			out.writeInt(frames);
+			for (int f = 0; f < frames; f++) {
+				out.writeLong(firstIndices[f]);
+				out.writeLong(offsets[f]);
+			}
+			out.writeLong(offset);
+		}
+
+		private void flush() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			int rawLength = 4 + 4 * count + dataLength;
+			if (raw.length < rawLength) {
+				raw = new byte[rawLength];
+				compressed = new byte[Lz4.maxCompressedLength(rawLength)];
+			}
+			ByteBuffer frame = ByteBuffer.wrap(raw);
+			frame.putInt(count);
+			for (int e = 0; e < count; e++) {
+				frame.putInt(lengths[e]);
+			}
+			frame.put(data, 0, dataLength);
+			int compressedLength = Lz4.compress(raw, 0, rawLength, compressed, 0);
+
+			if (frames == offsets.length) {
+				firstIndices = Arrays.copyOf(firstIndices, frames * 2);
+				offsets = Arrays.copyOf(offsets, frames * 2);
+			}
+			firstIndices[frames] = firstIndex;
+			offsets[frames] = offset;
+			frames++;
+			out.writeInt(rawLength);
+			out.writeInt(compressedLength);
+			out.write(compressed, 0, compressedLength);
+			offset += 8 + compressedLength;
+			count = 0;
+			dataLength = 0;
+		}
+	}
+
+	/**
+	 * A tailer over the decompressed excerpts of one frame at a time, held off-heap so
+	 * that records are decoded exactly as from the chronicle.
+	 */
+	final class Tailer extends NativeBytes implements ExcerptTailer {
+
+		private DirectStore store;
+		private DirectBytes frameBytes;
+		private byte[]      compressed = new byte[0];
+		private byte[]      raw        = new byte[0];
+		private int[]       starts     = new int[0];
+		private int[]       lengths    = new int[0];
+		private int         frame      = -1;
+		private long        index      = -1;
+		private boolean     padding;
+
+		Tailer() {
+			super(NO_PAGE, NO_PAGE);
+		}
+
+		@Override
+		public boolean index(long l) {
+			this.index = l;
+			this.padding = false;
+			if (l < 0 || l >= entries) {
+				return false;
+			}
+			int f = Arrays.binarySearch(firstIndices, l);
+			if (f < 0) {
+				f = -f - 2;
+			}
+			try {
+				load(f);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Failed to read compressed journal cycle: " + e.getMessage(), e);
+			}
+			int e = (int) (l - firstIndices[f]);
+			if (lengths[e] < 0) {
+				padding = true;
+				return false;
+			}
+			startAddr = positionAddr = store.address() + starts[e];
+			limitAddr = capacityAddr = startAddr + lengths[e];
+			finished = false;
+			return true;
+		}
+
+		@Override
+		public boolean nextIndex() {
+			for (long i = index + 1; i < entries; i++) {
+				if (index(i)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public ExcerptTailer toStart() {
+			index = -1;
+			return this;
+		}
+
+		@Override
+		public ExcerptTailer toEnd() {
+			if (entries > 0) {
+				index(entries - 1);
+			}
+			return this;
+		}
+
+		@Override
+		public boolean wasPadding() {
+			return padding;
+		}
+
+		@Override
+		public long index() {
+			return index;
+		}
+
+		@Override
+		public long size() {
+			return entries;
+		}
+
+		/**
+		 * @return null, the cycle has no chronicle anymore
+		 */
+		@Override
+		public Chronicle chronicle() {
+			return null;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			if (null != store) {
+				store.free();
+				store = null;
+			}
+		}
+
+		private void load(int f) throws IOException {
+			if (f == frame) {
+				return;
+			}
+			ByteBuffer head = readFrom(channel, offsets[f], 8);
+			int rawLength = head.getInt();
+			int compressedLength = head.getInt();
+			if (compressed.length < compressedLength) {
+				compressed = new byte[compressedLength];
+			}
+			if (raw.length < rawLength) {
+				raw = new byte[rawLength];
+			}
+			readFrom(channel, offsets[f] + 8, ByteBuffer.wrap(compressed, 0, compressedLength));
+			Lz4.decompress(compressed, 0, compressedLength, raw, 0, rawLength);
+
+			ByteBuffer frameBuffer = ByteBuffer.wrap(raw, 0, rawLength);
+			int count = frameBuffer.getInt();
+			if (starts.length < count) {
+				starts = new int[count];
+				lengths = new int[count];
+			}
+			int dataStart = 4 + 4 * count;
+			int start = 0;
+			for (int e = 0; e < count; e++) {
+				int length = frameBuffer.getInt();
+				starts[e] = start;
+				lengths[e] = length;
+				start += Math.max(0, length);
+			}
+			if (null == store || store.size() < start) {
+				if (null != store) {
+					store.free();
+				}
+				store = DirectStore.allocate(Math.max(start, FRAME_SIZE));
+				frameBytes = store.bytes();
+			}
+			frameBytes.write(0, raw, dataStart, start);
+			frame = f;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.concurrent.TimeUnit;
+
+import reactor.util.concurrent.WaitStrategy;
+
+/**
+ * How the consumer threads of an {@link AsyncAppender} wait for new events. Spinning
+ * picks an event up within a fraction of a microsecond but keeps a core busy for as long
+ * as the queue is empty, blocking frees the core at the cost of waking the consumer up.
+ */
+public enum ConsumerWaitStrategy {
+
+	/**
+	 * Block on a lock until a producer signals a new event (the historical behavior).
+	 * Idle consumers cost no CPU, each wake-up costs a signal and a context switch.
+	 */
+	BLOCKING {
+		@Override
+		WaitStrategy newWaitStrategy(long spinMicros, long yieldMicros) {
+			return WaitStrategy.liteBlocking();
+		}
+	},
+
+	/**
+	 * Busy spin. The lowest latency, but every consumer thread keeps a core busy even when
+	 * no event is logged: only for hosts with cores to dedicate to logging.
+	 */
+	BUSY_SPIN {
+		@Override
+		WaitStrategy newWaitStrategy(long spinMicros, long yieldMicros) {
+			return WaitStrategy.busySpin();
+		}
+	},
+
+	/**
+	 * Spin a little, then yield the core between polls. Close to busy spinning when the
+	 * core is not wanted by another thread, still a busy core as seen by the scheduler.
+	 */
+	YIELDING {
+		@Override
+		WaitStrategy newWaitStrategy(long spinMicros, long yieldMicros) {
+			return WaitStrategy.yielding();
+		}
+	},
+
+	/**
+	 * Spin a little, then park for the shortest time between polls. Little CPU and no
+	 * signalling on the producer side, a wake-up latency bound by the timer resolution.
+	 */
+	PARKING {
+		@Override
+		WaitStrategy newWaitStrategy(long spinMicros, long yieldMicros) {
+			return WaitStrategy.parking();
+		}
+	},
+
+	/**
+	 * Busy spin for {@literal waitSpinMicros}, then yield for {@literal waitYieldMicros},
+	 * then block as {@link #BLOCKING}. Bursts are picked up as fast as spinning while an
+	 * idle consumer gives its core back.
+	 */
+	PHASED {
+		@Override
+		WaitStrategy newWaitStrategy(long spinMicros, long yieldMicros) {
+			return WaitStrategy.phasedOffLiteLock(spinMicros, yieldMicros, TimeUnit.MICROSECONDS);
+		}
+	};
+
+	/**
+	 * @param spinMicros how long {@link #PHASED} spins
+	 * @param yieldMicros how long {@link #PHASED} yields after spinning
+	 *
+	 * @return a new wait strategy, never shared between queues
+	 */
+	abstract WaitStrategy newWaitStrategy(long spinMicros, long yieldMicros);
+}
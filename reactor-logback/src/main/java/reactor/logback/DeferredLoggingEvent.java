@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.UUID;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import org.slf4j.Marker;
+import org.slf4j.helpers.MessageFormatter;
+
+/**
+ * An immutable snapshot of an event taken by the producer of an {@link AsyncAppender}
+ * deferring formatting: the message template, the arguments, the MDC map as of the
+ * logging call and the other fields already captured by the live event. The message is
+ * only formatted when first asked for, on the consumer thread.
+ * <p>
+ * Arguments of well-known immutable types are kept as they are, any other argument is
+ * rendered to a string right away, as the formatter would render it, since it could
+ * change before the consumer gets to it.
+ */
+final class DeferredLoggingEvent implements ILoggingEvent {
+
+	private final long                timeStamp;
+	private final Level               level;
+	private final String              threadName;
+	private final String              loggerName;
+	private final String              message;
+	private final Object[]            argumentArray;
+	private final IThrowableProxy     throwableProxy;
+	private final StackTraceElement[] callerData;
+	private final Marker              marker;
+	private final Map<String, String> mdcPropertyMap;
+	private final LoggerContextVO     loggerContextVO;
+
+	// racy but idempotent, several lanes may format at once
+	private String formattedMessage;
+
+	/**
+	 * @param evt the live event, its thread name and MDC map already captured
+	 * @param includeCallerData whether to keep the caller data
+	 */
+	DeferredLoggingEvent(ILoggingEvent evt, boolean includeCallerData) {
+		this.timeStamp = evt.getTimeStamp();
+		this.level = evt.getLevel();
+		this.threadName = evt.getThreadName();
+		this.loggerName = evt.getLoggerName();
+		this.message = evt.getMessage();
+		this.argumentArray = snapshot(evt.getArgumentArray());
+		this.throwableProxy = evt.getThrowableProxy();
+		this.callerData = includeCallerData ? evt.getCallerData() : null;
+		this.marker = evt.getMarker();
+		this.mdcPropertyMap = evt.getMDCPropertyMap();
+		this.loggerContextVO = evt.getLoggerContextVO();
+	}
+
+	/**
+	 * Capture what deferring formatting cannot get later from the producer thread: its
+	 * name and its MDC map, which Logback copies on the next write rather than mutating.
+	 *
+	 * @param evt a live event on the producer thread
+	 */
+	static void prepare(ILoggingEvent evt) {
+		evt.getThreadName();
+		evt.getMDCPropertyMap();
+	}
+
+	/**
+	 * @return the arguments themselves if all of them are immutable, a copy with the
+	 * mutable ones rendered otherwise
+	 */
+	static Object[] snapshot(Object[] args) {
+		if (args == null) {
+			return null;
+		}
+		Object[] copy = args;
+		for (int i = 0; i < args.length; i++) {
+			if (!isImmutable(args[i])) {
+				if (copy == args) {
+					copy = args.clone();
+				}
+				copy[i] = MessageFormatter.arrayFormat("{}", new Object[]{args[i]}).getMessage();
+			}
+		}
+		return copy;
+	}
+
+	static String format(String message, Object[] args) {
+		return args == null ? message : MessageFormatter.arrayFormat(message, args).getMessage();
+	}
+
+	private static boolean isImmutable(Object arg) {
+		return arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long
+				|| arg instanceof Boolean || arg instanceof Double || arg instanceof Float
+				|| arg instanceof Short || arg instanceof Byte || arg instanceof Character
+				|| arg instanceof BigInteger || arg instanceof BigDecimal || arg instanceof Enum
+				|| arg instanceof UUID || arg instanceof Class;
+	}
+
+	@Override
+	public String getThreadName() {
+		return threadName;
+	}
+
+	@Override
+	public Level getLevel() {
+		return level;
+	}
+
+	@Override
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public Object[] getArgumentArray() {
+		return argumentArray;
+	}
+
+	@Override
+	public String getFormattedMessage() {
+		String formatted = formattedMessage;
+		if (formatted == null) {
+			formatted = format(message, argumentArray);
+			formattedMessage = formatted;
+		}
+		return formatted;
+	}
+
+	@Override
+	public String getLoggerName() {
+		return loggerName;
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return loggerContextVO;
+	}
+
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		return throwableProxy;
+	}
+
+	@Override
+	public StackTraceElement[] getCallerData() {
+		return callerData;
+	}
+
+	@Override
+	public boolean hasCallerData() {
+		return callerData != null;
+	}
+
+	@Override
+	public Marker getMarker() {
+		return marker;
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		return mdcPropertyMap;
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
+		return mdcPropertyMap;
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+	}
+
+	@Override
+	public String toString() {
+		return "[" + level + "] " + getFormattedMessage();
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.WorkQueueProcessor;
+import reactor.util.concurrent.WaitStrategy;
+
+/**
+ * A private queue and consumer thread in front of a single delegate of an
+ * {@link AsyncAppender} fanning out to several appenders. The appender's own consumer
+ * only offers events to each lane, so a slow sink is absorbed by its own lane and, once
+ * that lane is full, only drops events for itself unless the overflow policy says to
+ * block. A lane can also report a mark of the last event its delegate is done with, such
+ * as the journal position a durable appender may checkpoint.
+ */
+final class DelegateLane implements CoreSubscriber<ILoggingEvent> {
+
+	final Appender<ILoggingEvent> appender;
+
+	private final WorkQueueProcessor<ILoggingEvent> processor;
+	private final EventBatcher                      batcher;
+	private final int                               capacity;
+	private final LongAdder                         dropped   = new LongAdder();
+	private final LongAdder                         abandoned = new LongAdder();
+	private final CountDownLatch                    done      = new CountDownLatch(1);
+	private final Log2Histogram                     appendLatency;
+
+	// the System.nanoTime() past which pending events are abandoned, 0 for none
+	private volatile long drainDeadline;
+
+	// marks of the events accepted, by acceptance order, null if not tracked
+	private final long[]  marks;
+	// only updated by the appender's consumer
+	private long          accepted;
+	// only updated by this lane's consumer
+	private long          completed;
+	private volatile long doneMark;
+
+	volatile long inFlight;
+	static final AtomicLongFieldUpdater<DelegateLane> IN_FLIGHT =
+			AtomicLongFieldUpdater.newUpdater(DelegateLane.class, "inFlight");
+
+	/**
+	 * @param trackMarks whether to keep the marks given to {@link #offer} for
+	 * {@link #getDoneMark()}
+	 */
+	DelegateLane(Appender<ILoggingEvent> appender,
+			int capacity,
+			int maxBatchSize,
+			long batchLinger,
+			WaitStrategy waitStrategy,
+			Log2Histogram appendLatency,
+			boolean trackMarks) {
+		this.appender = appender;
+		this.appendLatency = appendLatency;
+		this.capacity = capacity;
+		// room for a full queue, a pending batch and an event blocked on the queue
+		this.marks = trackMarks ? new long[ceilingPowerOfTwo(capacity + maxBatchSize + 1)] : null;
+		// shared: the batch linger timer publishes flush markers too
+		this.processor = WorkQueueProcessor.<ILoggingEvent>builder().name("logger-" + appender.getName())
+		                                                            .bufferSize(capacity)
+		                                                            .share(true)
+		                                                            .autoCancel(false)
+		                                                            .waitStrategy(waitStrategy)
+		                                                            .build();
+		if (appender instanceof BatchAppender) {
+			this.batcher = new EventBatcher((BatchAppender<ILoggingEvent>) appender,
+					processor,
+					() -> inFlight,
+					this::reserveFlush,
+					maxBatchSize,
+					batchLinger);
+		}
+		else {
+			this.batcher = null;
+		}
+	}
+
+	void start() {
+		processor.subscribe(this);
+	}
+
+	/**
+	 * Queue an event for this lane's delegate.
+	 *
+	 * @param evt the event to deliver
+	 * @param blockWhenFull whether to wait for room rather than drop the event if the
+	 * lane is full
+	 * @param mark the mark reported by {@link #getDoneMark()} once the event is delivered
+	 *
+	 * @return false if the lane was full and the event was dropped for this delegate
+	 */
+	boolean offer(ILoggingEvent evt, boolean blockWhenFull, long mark) {
+		for (; ; ) {
+			long n = inFlight;
+			if (n >= capacity) {
+				if (!blockWhenFull) {
+					dropped.increment();
+					return false;
+				}
+				IN_FLIGHT.incrementAndGet(this);
+				break;
+			}
+			if (IN_FLIGHT.compareAndSet(this, n, n + 1)) {
+				break;
+			}
+		}
+		if (marks != null) {
+			// stored before the lane's consumer can see the event
+			marks[(int) (accepted++ & (marks.length - 1))] = mark;
+		}
+		processor.onNext(evt);
+		return true;
+	}
+
+	/**
+	 * Deliver maximal batches from now on and abandon the events still pending past a
+	 * deadline.
+	 *
+	 * @param deadline a {@link System#nanoTime()} deadline, or 0 for none
+	 */
+	void drain(long deadline) {
+		drainDeadline = deadline;
+		if (batcher != null) {
+			batcher.drain();
+		}
+	}
+
+	private boolean reserveFlush() {
+		for (; ; ) {
+			long n = inFlight;
+			if (n >= capacity) {
+				return false;
+			}
+			if (IN_FLIGHT.compareAndSet(this, n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting events, the delegate is stopped once the pending ones are delivered.
+	 */
+	void complete() {
+		processor.onComplete();
+	}
+
+	/**
+	 * Wait for the delegate to be stopped after {@link #complete()}.
+	 *
+	 * @return false if the wait timed out
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	long getLag() {
+		return inFlight;
+	}
+
+	long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	long getAbandonedCount() {
+		return abandoned.sum();
+	}
+
+	/**
+	 * @return the mark of the last event delivered to the delegate, every event accepted
+	 * before it being delivered too, or 0 if none was yet
+	 */
+	long getDoneMark() {
+		return doneMark;
+	}
+
+	@Override
+	public void onSubscribe(Subscription s) {
+		s.request(Long.MAX_VALUE);
+	}
+
+	@Override
+	public void onNext(ILoggingEvent evt) {
+		long deadline = drainDeadline;
+		if (deadline != 0 && evt != EventBatcher.FLUSH && System.nanoTime() - deadline > 0) {
+			abandoned.increment();
+			if (evt instanceof LoggingEventSlot) {
+				((LoggingEventSlot) evt).release();
+			}
+			IN_FLIGHT.decrementAndGet(this);
+			return;
+		}
+		if (batcher != null) {
+			long start = System.nanoTime();
+			int flushed = batcher.add(evt);
+			if (flushed > 0) {
+				appendLatency.record((System.nanoTime() - start) / flushed, flushed);
+				done(flushed);
+			}
+			// the flush marker was counted as pending by reserveFlush
+			IN_FLIGHT.addAndGet(this, evt == EventBatcher.FLUSH ? -flushed - 1 : -flushed);
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			appender.doAppend(evt);
+			appendLatency.record(System.nanoTime() - start);
+		}
+		finally {
+			done(1);
+			if (evt instanceof LoggingEventSlot) {
+				((LoggingEventSlot) evt).release();
+			}
+			IN_FLIGHT.decrementAndGet(this);
+		}
+	}
+
+	private void done(int count) {
+		if (marks == null || count == 0) {
+			return;
+		}
+		completed += count;
+		doneMark = marks[(int) ((completed - 1) & (marks.length - 1))];
+	}
+
+	private static int ceilingPowerOfTwo(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		appender.addError(t.getMessage(), t);
+	}
+
+	@Override
+	public void onComplete() {
+		try {
+			if (batcher != null) {
+				int flushed = batcher.flush();
+				done(flushed);
+				IN_FLIGHT.addAndGet(this, -flushed);
+			}
+			appender.stop();
+		}
+		finally {
+			done.countDown();
+		}
+	}
+}
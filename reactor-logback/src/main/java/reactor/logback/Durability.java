@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+/**
+ * When a {@link DurableAsyncAppender} forces its journal to disk.
+ */
+public enum Durability {
+
+	/**
+	 * Force the journal before returning from every logging call (the historical
+	 * behavior). Concurrent calls share one sync.
+	 */
+	SYNC,
+
+	/**
+	 * Force the journal in the background once {@literal syncEvery} events have been
+	 * written since the last sync or every {@literal syncInterval} milliseconds,
+	 * whichever comes first.
+	 */
+	GROUP,
+
+	/**
+	 * Leave it to the operating system to write the journal back, it is only forced when
+	 * the appender stops.
+	 */
+	OS
+
+}
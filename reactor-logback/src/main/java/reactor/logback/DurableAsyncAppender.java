@@ -16,29 +16,56 @@
 
 package reactor.logback;
 
+import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.LoggingEvent;
-import net.openhft.chronicle.Chronicle;
-import net.openhft.chronicle.ChronicleQueueBuilder;
-import net.openhft.chronicle.ExcerptAppender;
+import ch.qos.logback.core.Appender;
 import net.openhft.chronicle.tools.ChronicleTools;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * An {@literal AsyncAppender} subclass that first writes a log event to a durable {@literal Chronicle} using Java
- * Chronicle before allowing the event to be queued.
+ * Chronicle before allowing the event to be queued. Concurrent producers share the single journal writer, and
+ * the journal sync, through a {@link JournalWriter} rather than a monitor. The {@link Durability} mode decides
+ * whether a logging call waits for its event to be forced to disk.
+ * <p>
+ * The journal index up to which events have been delivered is checkpointed as the consumer goes, and the
+ * events journaled past it are replayed to the delegates, in batches, when the appender starts again after the
+ * JVM died. With several delegates an event counts as delivered once every lane is done with it.
+ * <p>
+ * The journal can be rolled into cycles by age or size, the oldest cycles being deleted or archived in the
+ * background past a number of cycles or a total size. Closed cycles can also be compressed in the background.
+ * Readers see the cycles as one journal, compressed or not.
  *
  * @author Jon Brisbin
  */
 public class DurableAsyncAppender extends AsyncAppender {
 
-	private final Object writeMonitor = new Object();
+	private String     basePath       = "log";
+	private Durability durability     = Durability.SYNC;
+	private long       syncEvery      = 1000;
+	private long       syncInterval   = 100;
+	private int        indexBlockSize = 1024;
+	private long       rollInterval   = 0;
+	private long       rollSize       = 0;
+	private int        maxCycles      = 0;
+	private long       maxTotalSize   = 0;
+	private String     archivePath;
+	private boolean    compress       = false;
+	private boolean    compactMdc     = true;
 
-	private String basePath = "log";
+	private JournalWriter     writer;
+	private JournalCheckpoint checkpoint;
 
-	private Chronicle       chronicle;
-	private ExcerptAppender appender;
+	// journal index following each queued event, by queue sequence
+	private long[] queuedEnds;
+	// only updated by the journal hand-off, one thread at a time
+	private long   queued;
+	// only updated by the consumer
+	private long   deliveredCount;
 
 	public DurableAsyncAppender() {
 	}
@@ -51,13 +78,191 @@ public class DurableAsyncAppender extends AsyncAppender {
 		this.basePath = chronicle;
 	}
 
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Set when the journal is forced to disk. Defaults to {@link Durability#SYNC}.
+	 *
+	 * @param durability the durability mode
+	 */
+	public void setDurability(Durability durability) {
+		this.durability = durability;
+	}
+
+	public long getSyncEvery() {
+		return syncEvery;
+	}
+
+	/**
+	 * Set how many events {@link Durability#GROUP} writes before requesting a sync.
+	 * Defaults to 1000.
+	 *
+	 * @param syncEvery the number of events
+	 */
+	public void setSyncEvery(long syncEvery) {
+		this.syncEvery = syncEvery;
+	}
+
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Set how often {@link Durability#GROUP} syncs the journal, in milliseconds. Defaults
+	 * to 100.
+	 *
+	 * @param syncInterval the sync period
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	public int getIndexBlockSize() {
+		return indexBlockSize;
+	}
+
+	/**
+	 * Set how many events each entry of the journal's time and level index covers.
+	 * Defaults to 1024.
+	 *
+	 * @param indexBlockSize the number of events per index entry
+	 */
+	public void setIndexBlockSize(int indexBlockSize) {
+		this.indexBlockSize = indexBlockSize;
+	}
+
+	public long getRollInterval() {
+		return rollInterval;
+	}
+
+	/**
+	 * Set how long a journal cycle is written to before the next one is started, in
+	 * milliseconds. Defaults to 0, not rolling by age.
+	 *
+	 * @param rollInterval the age of a cycle when it is rolled
+	 */
+	public void setRollInterval(long rollInterval) {
+		this.rollInterval = rollInterval;
+	}
+
+	public long getRollSize() {
+		return rollSize;
+	}
+
+	/**
+	 * Set how many bytes of records a journal cycle holds before the next one is
+	 * started. Defaults to 0, not rolling by size.
+	 *
+	 * @param rollSize the size of a cycle when it is rolled
+	 */
+	public void setRollSize(long rollSize) {
+		this.rollSize = rollSize;
+	}
+
+	public int getMaxCycles() {
+		return maxCycles;
+	}
+
+	/**
+	 * Set how many journal cycles are kept, the current one included. Cycles holding
+	 * events not delivered yet are kept regardless. Defaults to 0, keeping them all.
+	 *
+	 * @param maxCycles the number of cycles kept
+	 */
+	public void setMaxCycles(int maxCycles) {
+		this.maxCycles = maxCycles;
+	}
+
+	public long getMaxTotalSize() {
+		return maxTotalSize;
+	}
+
+	/**
+	 * Set how many bytes of records the journal cycles may hold together before the
+	 * oldest ones are removed, the current cycle and those holding events not delivered
+	 * yet being always kept. A compressed cycle
+	 * counts for the size of its compressed file. Defaults to 0, no limit.
+	 *
+	 * @param maxTotalSize the size of the cycles kept
+	 */
+	public void setMaxTotalSize(long maxTotalSize) {
+		this.maxTotalSize = maxTotalSize;
+	}
+
+	public String getArchivePath() {
+		return archivePath;
+	}
+
+	/**
+	 * Set a directory the journal cycles past the retention limits are moved to instead
+	 * of being deleted.
+	 *
+	 * @param archivePath the archive directory
+	 */
+	public void setArchivePath(String archivePath) {
+		this.archivePath = archivePath;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	/**
+	 * Set whether the journal cycles are compressed once closed, which only happens when
+	 * the journal is rolled. Events are always written uncompressed. Defaults to false.
+	 *
+	 * @param compress true to compress closed cycles
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	public boolean isCompactMdc() {
+		return compactMdc;
+	}
+
+	/**
+	 * Set whether a record refers to the set of keys of its MDC by an id kept in the
+	 * journal dictionary and only stores the values, rather than every key. The values are
+	 * stored in full either way. Defaults to true.
+	 *
+	 * @param compactMdc false to store the key of every MDC entry in each record
+	 */
+	public void setCompactMdc(boolean compactMdc) {
+		this.compactMdc = compactMdc;
+	}
+
+	/**
+	 * @return the number of events written to the journal and not yet forced to disk
+	 */
+	public long getDurabilityLag() {
+		JournalWriter writer = this.writer;
+		return writer != null ? writer.getDurabilityLag() : 0L;
+	}
+
+	/**
+	 * @return the journal position of the first event not known to be delivered, which
+	 * retention keeps, or {@link Long#MAX_VALUE} if the appender is not started
+	 */
+	long undeliveredPosition() {
+		JournalCheckpoint checkpoint = this.checkpoint;
+		return checkpoint != null ? checkpoint.get() : Long.MAX_VALUE;
+	}
+
 	@Override
 	protected void doStart() {
 		ChronicleTools.warmup();
 		this.basePath = (this.basePath.endsWith("/") ? this.basePath + getName() : this.basePath + "/" + getName());
 		try {
-			chronicle = ChronicleQueueBuilder.indexed(basePath).synchronous(true).build();
-			appender = chronicle.createAppender();
+			checkpoint = new JournalCheckpoint(basePath);
+			if (checkpoint.exists()) {
+				replay(checkpoint.get());
+			}
+			queuedEnds = new long[ceilingPowerOfTwo(getBufferSize() + getMaxBatchSize())];
+			writer = new JournalWriter(basePath, this, this::queueWritten);
+			checkpoint.set(writer.position());
 		} catch (Throwable t) {
 			addError(t.getMessage(), t);
 		}
@@ -66,8 +271,17 @@ public class DurableAsyncAppender extends AsyncAppender {
 	@Override
 	protected void doStop() {
 		try {
-			appender.flush();
-			chronicle.close();
+			writer.close();
+			// the lanes, if any, are done or gave up past the drain deadline by now
+			if (getAbandonedCount() == 0 && inFlight == 0 && lanesDoneUpTo(Long.MAX_VALUE) == Long.MAX_VALUE) {
+				// whatever was not queued was dropped on purpose
+				checkpoint.set(writer.position());
+			}
+			else {
+				// as far as the lanes got, for the next start to replay the rest
+				checkpointDelivered();
+			}
+			checkpoint.close();
 		} catch (IOException e) {
 			addError(e.getMessage(), e);
 		}
@@ -75,10 +289,105 @@ public class DurableAsyncAppender extends AsyncAppender {
 
 	@Override
 	protected void queueLoggingEvent(ILoggingEvent evt) {
-		synchronized (writeMonitor) {
-			LoggingEventRecord.write(appender, (LoggingEvent) evt, isIncludeCallerData(), 1);
+		// queued by the journal hand-off, so that the queue is in journal order
+		writer.write(evt);
+	}
+
+	@Override
+	boolean isShardable() {
+		// the checkpoint only moves forward over events delivered in journal order
+		return false;
+	}
+
+	@Override
+	boolean tracksLanes() {
+		return true;
+	}
+
+	@Override
+	long laneMark() {
+		// the journal position following the event being handed out
+		long[] ends = queuedEnds;
+		return ends[(int) (deliveredCount & (ends.length - 1))];
+	}
+
+	@Override
+	void delivered(int count) {
+		if (count == 0) {
+			return;
+		}
+		deliveredCount += count;
+		checkpointDelivered();
+	}
+
+	private void checkpointDelivered() {
+		if (deliveredCount == 0) {
+			return;
 		}
-		super.queueLoggingEvent(evt);
+		long[] ends = queuedEnds;
+		// with several delegates, their lanes may still hold events handed out before
+		long end = lanesDoneUpTo(ends[(int) ((deliveredCount - 1) & (ends.length - 1))]);
+		if (end > checkpoint.get()) {
+			checkpoint.set(end);
+		}
+	}
+
+	private void queueWritten(ILoggingEvent evt, long end) {
+		long[] ends = queuedEnds;
+		// stored before the consumer can see the event
+		ends[(int) (queued & (ends.length - 1))] = end;
+		if (offer(evt)) {
+			queued++;
+		}
+	}
+
+	private void replay(long from) throws IOException {
+		JournalReader reader = new JournalReader(basePath);
+		try {
+			if (reader.size() <= from) {
+				return;
+			}
+			if (getContext() instanceof LoggerContext) {
+				reader.setLoggerContextVO(((LoggerContext) getContext()).getLoggerContextRemoteView());
+			}
+			int batchSize = Math.max(1, getMaxBatchSize());
+			List<ILoggingEvent> batch = new ArrayList<>(batchSize);
+			long[] replayed = new long[1];
+			// streamed, so that only one batch of a large backlog is decoded at a time
+			reader.scan(JournalQuery.ALL, from, evt -> {
+				batch.add(evt);
+				if (batch.size() >= batchSize) {
+					replayed[0] += appendReplayed(batch);
+				}
+			});
+			replayed[0] += appendReplayed(batch);
+			addInfo("Replayed " + replayed[0] + " journaled events not delivered before the last stop");
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private int appendReplayed(List<ILoggingEvent> batch) {
+		Iterator<Appender<ILoggingEvent>> it = iteratorForAppenders();
+		while (it.hasNext()) {
+			Appender<ILoggingEvent> delegate = it.next();
+			if (delegate instanceof BatchAppender) {
+				((BatchAppender<ILoggingEvent>) delegate).doAppendBatch(batch);
+			}
+			else {
+				for (ILoggingEvent evt : batch) {
+					delegate.doAppend(evt);
+				}
+			}
+		}
+		int n = batch.size();
+		batch.clear();
+		return n;
+	}
+
+	private static int ceilingPowerOfTwo(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
 	}
 
 }
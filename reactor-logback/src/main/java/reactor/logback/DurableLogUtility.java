@@ -21,21 +21,26 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
-import ch.qos.logback.classic.spi.LoggingEvent;
-import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggerContextVO;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.joran.spi.JoranException;
 import ch.qos.logback.core.util.StatusPrinter;
-import net.openhft.chronicle.Chronicle;
-import net.openhft.chronicle.ChronicleQueueBuilder;
-import net.openhft.chronicle.ExcerptTailer;
 import net.openhft.chronicle.tools.ChronicleTools;
 import org.apache.commons.cli.*;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.Nullable;
 
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -45,6 +50,9 @@ public class DurableLogUtility {
 
 	private static Options OPTS = new Options();
 
+	private static final Pattern DIGITS = Pattern.compile("\\d+");
+	private static final Pattern AGO    = Pattern.compile("(\\d+)([smhd])");
+
 	private DurableLogUtility() {
 	}
 
@@ -59,15 +67,30 @@ public class DurableLogUtility {
 		Option level = new Option("level", true, "Log level to filter");
 		Option head = new Option("head", true, "Number of lines to display from the head of the file");
 		Option tail = new Option("tail", true, "Number of lines to display from the tail of the file");
+		Option from = new Option("from", true,
+		  "Oldest event time: epoch millis, ISO-8601 date-time or a duration ago such as 10m");
+		Option to = new Option("to", true, "Newest event time, in the same formats as -from");
+		Option parallel = new Option("parallel", true, "Number of threads scanning the journal, all cores by default");
+		parallel.setOptionalArg(true);
+		Option follow = new Option("f", "follow", false,
+		  "Keep printing new events as they are written, after the -tail ones if given");
+		Option wait = new Option("wait", true,
+		  "How -f waits for new events: spins,yields,max park in microseconds (default 100,100,1000)");
+		// -tail goes along with -search under -f, see main()
 		OptionGroup findOpts = new OptionGroup()
 		  .addOption(regex)
-		  .addOption(head)
-		  .addOption(tail);
+		  .addOption(head);
 
 		OPTS.addOption(path)
 		  .addOption(config)
 		  .addOption(output)
 		  .addOption(level)
+		  .addOption(from)
+		  .addOption(to)
+		  .addOption(parallel)
+		  .addOption(follow)
+		  .addOption(wait)
+		  .addOption(tail)
 		  .addOptionGroup(findOpts);
 	}
 
@@ -75,10 +98,9 @@ public class DurableLogUtility {
 	public static void main(String... args) throws ParseException,
 	  JoranException,
 	  IOException {
-		Parser parser = new BasicParser();
 		CommandLine cl = null;
 		try {
-			cl = parser.parse(OPTS, args);
+			cl = parse(args);
 		} catch (ParseException e) {
 			HelpFormatter help = new HelpFormatter();
 			help.printHelp("dlog", OPTS, true);
@@ -107,54 +129,179 @@ public class DurableLogUtility {
 		}
 
 		ChronicleTools.warmup();
-		Chronicle chronicle = ChronicleQueueBuilder.indexed(cl.getOptionValue("path")).build();
-		ExcerptTailer ex = chronicle.createTailer();
 
 		Level level = Level.valueOf(cl.getOptionValue("level", "TRACE"));
 
-		if (cl.hasOption("head")) {
+		if (cl.hasOption("follow")) {
+			Pattern regexPatt = (cl.hasOption("search") ? Pattern.compile(cl.getOptionValue("search")) : null);
+			JournalQuery query = new JournalQuery(Long.MIN_VALUE, Long.MAX_VALUE, level, regexPatt);
+			int lines = (cl.hasOption("tail") ? Integer.parseInt(cl.getOptionValue("tail")) : 0);
+			FollowWaitStrategy waitStrategy = (cl.hasOption("wait") ? parseWait(cl.getOptionValue("wait")) :
+			  FollowWaitStrategy.DEFAULT);
+			Appender out = appender;
+			follow(cl.getOptionValue("path"), query, lines, waitStrategy, loggerContext.getLoggerContextRemoteView())
+			  .doOnNext(evt -> writeEvent(evt, out))
+			  .blockLast();
+		} else if (cl.hasOption("head")) {
 			int lines = Integer.parseInt(cl.getOptionValue("head", "10"));
-			for (int i = 0; i < lines; i++) {
-				LoggingEvent evt = readLoggingEvent(ex, loggerContext);
+			JournalReader reader = new JournalReader(cl.getOptionValue("path"));
+			reader.setLoggerContextVO(loggerContext.getLoggerContextRemoteView());
+			for (ILoggingEvent evt : reader.next(JournalQuery.ALL, 0, lines)) {
 				if (evt.getLevel().isGreaterOrEqual(level)) {
 					writeEvent(evt, appender);
 				}
 			}
+			reader.close();
 		} else if (cl.hasOption("tail")) {
 			int lines = Integer.parseInt(cl.getOptionValue("tail", "10"));
-			Queue<LoggingEvent> tail = new LinkedBlockingQueue<LoggingEvent>(lines);
-			while (ex.nextIndex()) {
-				LoggingEvent evt = readLoggingEvent(ex, loggerContext);
-				if (!tail.offer(evt)) {
-					tail.poll();
-					tail.add(evt);
-				}
+			// walks back from the end of the journal instead of reading all of it
+			JournalReader reader = new JournalReader(cl.getOptionValue("path"));
+			reader.setLoggerContextVO(loggerContext.getLoggerContextRemoteView());
+			JournalQuery query = new JournalQuery(Long.MIN_VALUE, Long.MAX_VALUE, level, null);
+			for (ILoggingEvent evt : reader.previous(query, Long.MAX_VALUE, lines)) {
+				writeEvent(evt, appender);
 			}
-			LoggingEvent evt;
-			while (null != (evt = tail.poll())) {
-				if (evt.getLevel().isGreaterOrEqual(level)) {
-					writeEvent(evt, appender);
-				}
+			reader.close();
+		} else if (cl.hasOption("search") || cl.hasOption("from") || cl.hasOption("to")
+		  || cl.hasOption("parallel")) {
+			long now = System.currentTimeMillis();
+			long from = (cl.hasOption("from") ? parseTime(cl.getOptionValue("from"), now) : Long.MIN_VALUE);
+			long to = (cl.hasOption("to") ? parseTime(cl.getOptionValue("to"), now) : Long.MAX_VALUE);
+			Pattern regexPatt = (cl.hasOption("search") ? Pattern.compile(cl.getOptionValue("search")) : null);
+			JournalQuery query = new JournalQuery(from, to, level, regexPatt);
+
+			// the side index narrows the time range and level down to the blocks which can match
+			JournalReader reader = new JournalReader(cl.getOptionValue("path"));
+			reader.setLoggerContextVO(loggerContext.getLoggerContextRemoteView());
+			Appender out = appender;
+			if (cl.hasOption("parallel")) {
+				int threads = Integer.parseInt(cl.getOptionValue("parallel",
+				  String.valueOf(Runtime.getRuntime().availableProcessors())));
+				reader.parallelScan(query, 0, threads, evt -> writeEvent(evt, out));
+			} else {
+				reader.scan(query, evt -> writeEvent(evt, out));
 			}
-		} else if (cl.hasOption("search")) {
-			String regex = cl.getOptionValue("search");
-			Pattern regexPatt = Pattern.compile(regex);
-			while (ex.nextIndex()) {
-				LoggingEvent evt = readLoggingEvent(ex, loggerContext);
-				if (null != evt && evt.getLevel().isGreaterOrEqual(level)) {
-					if (regexPatt.matcher(evt.getFormattedMessage()).matches()) {
-						writeEvent(evt, appender);
+			reader.close();
+		}
+
+		loggerContext.stop();
+	}
+
+	/**
+	 * Parse the command line, -tail going along with -search only under -f.
+	 *
+	 * @param args the command line arguments
+	 *
+	 * @return the parsed command line
+	 *
+	 * @throws ParseException if the arguments are invalid or conflicting
+	 */
+	static CommandLine parse(String... args) throws ParseException {
+		Parser parser = new BasicParser();
+		CommandLine cl = parser.parse(OPTS, args);
+		if (cl.hasOption("tail") && (cl.hasOption("head") || cl.hasOption("search") && !cl.hasOption("follow"))) {
+			throw new ParseException("-tail only goes along with -search under -f");
+		}
+		return cl;
+	}
+
+	/**
+	 * Follow a durable journal: stream the events written to it from the subscription on,
+	 * as soon as they are written. The journal is polled from a dedicated thread and closed
+	 * once the subscription is cancelled.
+	 *
+	 * @param basePath the base path of the journal
+	 * @param level the lowest level of the events streamed
+	 * @param regex a pattern the formatted message of the events streamed must match, or null
+	 * @param wait how to wait for new events
+	 *
+	 * @return the events written to the journal
+	 */
+	public static Flux<ILoggingEvent> follow(String basePath,
+	                                         Level level,
+	                                         @Nullable Pattern regex,
+	                                         FollowWaitStrategy wait) {
+		return follow(basePath, new JournalQuery(Long.MIN_VALUE, Long.MAX_VALUE, level, regex), 0, wait, null);
+	}
+
+	static Flux<ILoggingEvent> follow(String basePath,
+	                                  JournalQuery query,
+	                                  int backlog,
+	                                  FollowWaitStrategy wait,
+	                                  @Nullable LoggerContextVO loggerContextVO) {
+		return Flux.create(sink -> {
+			JournalReader reader;
+			try {
+				reader = new JournalReader(basePath);
+			} catch (IOException e) {
+				sink.error(e);
+				return;
+			}
+			reader.setLoggerContextVO(loggerContextVO);
+			// opened here so that nothing written after the subscription is missed
+			long from = reader.size();
+			Scheduler follower = Schedulers.newSingle("journal-follow");
+			follower.schedule(() -> {
+				try {
+					for (ILoggingEvent evt : reader.previous(query, from, backlog)) {
+						sink.next(evt);
+					}
+					reader.follow(query, from, wait, sink);
+				} catch (Throwable t) {
+					sink.error(t);
+				} finally {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						sink.error(e);
 					}
+					follower.dispose();
 				}
-			}
+			});
+		});
+	}
+
+	static FollowWaitStrategy parseWait(String value) {
+		String[] parts = value.split(",");
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("Expected spins,yields,max park in microseconds but got " + value);
 		}
+		return new FollowWaitStrategy(Integer.parseInt(parts[0].trim()),
+		  Integer.parseInt(parts[1].trim()),
+		  TimeUnit.MICROSECONDS.toNanos(Long.parseLong(parts[2].trim())));
+	}
 
-		loggerContext.stop();
-		chronicle.close();
+	/**
+	 * Parse a time given as epoch millis, an ISO-8601 instant or local date-time, or a duration ago such as
+	 * {@literal 30s}, {@literal 10m}, {@literal 2h} or {@literal 1d}.
+	 */
+	static long parseTime(String value, long now) {
+		if (DIGITS.matcher(value).matches()) {
+			return Long.parseLong(value);
+		}
+		Matcher ago = AGO.matcher(value);
+		if (ago.matches()) {
+			long amount = Long.parseLong(ago.group(1));
+			switch (ago.group(2)) {
+				case "s":
+					return now - TimeUnit.SECONDS.toMillis(amount);
+				case "m":
+					return now - TimeUnit.MINUTES.toMillis(amount);
+				case "h":
+					return now - TimeUnit.HOURS.toMillis(amount);
+				default:
+					return now - TimeUnit.DAYS.toMillis(amount);
+			}
+		}
+		try {
+			return Instant.parse(value).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		}
 	}
 
 	@SuppressWarnings("unchecked")
-	private static void writeEvent(LoggingEvent evt, Appender appender) {
+	private static void writeEvent(ILoggingEvent evt, Appender appender) {
 		if (null == evt) {
 			return;
 		}
@@ -165,29 +312,4 @@ public class DurableLogUtility {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private static LoggingEvent readLoggingEvent(ExcerptTailer ex,
-	                                             LoggerContext ctx) {
-		LoggingEventRecord rec = LoggingEventRecord.read(ex);
-
-		Logger logger = ctx.getLogger(rec.getLoggerName());
-		LoggingEvent evt = new LoggingEvent(
-		  logger.getClass().getName(),
-		  logger,
-		  Level.toLevel(rec.getLevel()),
-		  rec.getMessage(),
-		  rec.getCause(),
-		  rec.getArgs()
-		);
-		evt.setTimeStamp(rec.getTimestamp());
-		evt.setThreadName(rec.getThreadName());
-		evt.setMDCPropertyMap(rec.getMdcProps());
-		if (null != rec.getCause()) {
-			evt.setThrowableProxy(new ThrowableProxy(rec.getCause()));
-		}
-		evt.setCallerData(rec.getCallerData());
-
-		return evt;
-	}
-
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import reactor.core.publisher.WorkQueueProcessor;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Accumulates the events a consumer drains from its {@link WorkQueueProcessor} and hands
+ * them to a {@link BatchAppender} once the batch is full, or once the queue is empty and
+ * the oldest buffered event has lingered long enough. Only ever called from the consumer
+ * thread; the linger timeout is delivered through the queue itself as a {@link #FLUSH}
+ * marker, published from a timer thread of its own once room for it is reserved in the
+ * queue, so that it neither blocks on a full queue nor takes the room of an event. Once {@link #drain() draining}, only full batches are handed over until the
+ * queue completes.
+ */
+final class EventBatcher {
+
+	/**
+	 * Marker published by the linger timer, never counted as a pending event.
+	 */
+	static final ILoggingEvent FLUSH = new LoggingEventSlot();
+
+	private static final Scheduler LINGER_TIMER = Schedulers.newSingle("logger-linger", true);
+
+	private final BatchAppender<ILoggingEvent>      appender;
+	private final WorkQueueProcessor<ILoggingEvent> processor;
+	private final LongSupplier                      pending;
+	private final BooleanSupplier                   reserveFlush;
+	private final List<ILoggingEvent>               batch;
+	private final int                               maxBatchSize;
+	private final long                              lingerMillis;
+
+	private long firstEventTime;
+
+	// cleared by the timer when the queue has no room for the marker
+	private volatile boolean flushScheduled;
+
+	private volatile boolean draining;
+
+	/**
+	 * @param appender the batch-aware delegate
+	 * @param processor the queue drained by the consumer
+	 * @param pending how many events are accepted and not yet delivered, including the
+	 * ones buffered here
+	 * @param reserveFlush counts a {@link #FLUSH} marker as pending if the queue has room
+	 * for it, the consumer no longer counting it once received
+	 * @param maxBatchSize the largest batch handed to the delegate
+	 * @param lingerMillis how long a partial batch may wait once the queue is drained
+	 */
+	EventBatcher(BatchAppender<ILoggingEvent> appender,
+			WorkQueueProcessor<ILoggingEvent> processor,
+			LongSupplier pending,
+			BooleanSupplier reserveFlush,
+			int maxBatchSize,
+			long lingerMillis) {
+		this.appender = appender;
+		this.processor = processor;
+		this.pending = pending;
+		this.reserveFlush = reserveFlush;
+		this.maxBatchSize = maxBatchSize;
+		this.lingerMillis = lingerMillis;
+		this.batch = new ArrayList<>(maxBatchSize);
+	}
+
+	/**
+	 * Buffer an event drained from the queue, or react to a {@link #FLUSH} marker.
+	 *
+	 * @param evt the drained event
+	 *
+	 * @return the number of events handed to the appender, 0 while still buffering
+	 */
+	int add(ILoggingEvent evt) {
+		if (evt == FLUSH) {
+			flushScheduled = false;
+			return flush();
+		}
+		if (batch.isEmpty()) {
+			firstEventTime = System.currentTimeMillis();
+		}
+		batch.add(evt);
+		if (batch.size() >= maxBatchSize) {
+			return flush();
+		}
+		if (draining) {
+			// the rest is flushed once the queue completes
+			return 0;
+		}
+		if (pending.getAsLong() > batch.size()) {
+			// the current burst is not fully drained yet
+			return 0;
+		}
+		long waited = System.currentTimeMillis() - firstEventTime;
+		if (waited >= lingerMillis) {
+			return flush();
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			LINGER_TIMER.schedule(this::signalFlush, lingerMillis - waited, TimeUnit.MILLISECONDS);
+		}
+		return 0;
+	}
+
+	/**
+	 * Hand the buffered events to the appender and release them.
+	 *
+	 * @return the number of events handed to the appender
+	 */
+	int flush() {
+		int n = batch.size();
+		if (n == 0) {
+			return 0;
+		}
+		try {
+			appender.doAppendBatch(batch);
+		}
+		catch (Throwable t) {
+			appender.addError(t.getMessage(), t);
+		}
+		finally {
+			for (int i = 0; i < n; i++) {
+				ILoggingEvent evt = batch.get(i);
+				if (evt instanceof LoggingEventSlot) {
+					((LoggingEventSlot) evt).release();
+				}
+			}
+			batch.clear();
+		}
+		return n;
+	}
+
+	/**
+	 * Stop delivering partial batches, the queue being drained for shutdown. Can be called
+	 * from any thread.
+	 */
+	void drain() {
+		draining = true;
+	}
+
+	private void signalFlush() {
+		if (draining || processor.isTerminated()) {
+			return;
+		}
+		if (!reserveFlush.getAsBoolean()) {
+			// the consumer has a full queue to go through and schedules the flush again
+			flushScheduled = false;
+			return;
+		}
+		processor.onNext(FLUSH);
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.function.Predicate;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEventVO;
+import reactor.core.publisher.FluxSink;
+
+/**
+ * A subscriber to {@link AsyncAppender#tap} seen from the appender's consumer: events
+ * passing the filter are pushed to its sink, whose bounded buffer and hand-off thread
+ * keep a slow tap away from the delegates.
+ */
+final class EventTap {
+
+	private final Predicate<? super ILoggingEvent> filter;
+	private final FluxSink<ILoggingEvent>          sink;
+
+	EventTap(Predicate<? super ILoggingEvent> filter, FluxSink<ILoggingEvent> sink) {
+		this.filter = filter;
+		this.sink = sink;
+	}
+
+	/**
+	 * Push an event to the tap if it passes the filter. Called by the consumer once the
+	 * delegates have seen the event.
+	 *
+	 * @param evt the delivered event
+	 */
+	void offer(ILoggingEvent evt) {
+		if (sink.isCancelled() || !filter.test(evt)) {
+			return;
+		}
+		// slots are reused as soon as the consumer releases them
+		sink.next(evt instanceof LoggingEventSlot ? LoggingEventVO.build(evt) : evt);
+	}
+
+	void complete() {
+		sink.complete();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a journal follower waits for new records: it busy spins first, then yields its
+ * core, then parks for a time doubling from a microsecond up to a maximum. Spinning picks
+ * new records up within microseconds but keeps a core busy, parking frees the core at the
+ * cost of the wake-up latency.
+ */
+public final class FollowWaitStrategy {
+
+	/**
+	 * 100 spins, 100 yields, then parks of up to a millisecond.
+	 */
+	public static final FollowWaitStrategy DEFAULT =
+			new FollowWaitStrategy(100, 100, TimeUnit.MILLISECONDS.toNanos(1));
+
+	static final long MIN_PARK_NANOS = 1000L;
+
+	final int  spins;
+	final int  yields;
+	final long maxParkNanos;
+
+	/**
+	 * @param spins the number of empty polls busy spinning
+	 * @param yields the number of empty polls yielding after that
+	 * @param maxParkNanos the longest park after that, in nanoseconds
+	 */
+	public FollowWaitStrategy(int spins, int yields, long maxParkNanos) {
+		if (spins < 0 || yields < 0) {
+			throw new IllegalArgumentException("spins and yields must not be negative");
+		}
+		if (maxParkNanos < 1) {
+			throw new IllegalArgumentException("maxParkNanos must be strictly positive");
+		}
+		this.spins = spins;
+		this.yields = yields;
+		this.maxParkNanos = maxParkNanos;
+	}
+
+	/**
+	 * Wait after an empty poll.
+	 *
+	 * @param idleCount the number of empty polls in a row before this one
+	 *
+	 * @return the number of empty polls in a row including this one
+	 */
+	int idle(int idleCount) {
+		if (idleCount >= spins) {
+			int parks = idleCount - spins - yields;
+			if (parks < 0) {
+				Thread.yield();
+			}
+			else {
+				LockSupport.parkNanos(Math.min(maxParkNanos, MIN_PARK_NANOS << Math.min(parks, 30)));
+			}
+		}
+		return idleCount < Integer.MAX_VALUE ? idleCount + 1 : idleCount;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The journal position up to which a {@link DurableAsyncAppender} has delivered its
+ * events, kept in a memory-mapped file next to the journal so that updating it on every
+ * event costs a store and survives the JVM dying. The same kind of file counts the bytes
+ * written to each {@link JournalCycles journal cycle}.
+ */
+final class JournalCheckpoint {
+
+	static final String SUFFIX = "-checkpoint";
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final boolean          existed;
+
+	/**
+	 * @param basePath the base path of the journal, not of the checkpoint itself
+	 *
+	 * @throws IOException if the checkpoint cannot be opened
+	 */
+	JournalCheckpoint(String basePath) throws IOException {
+		this(new File(basePath + SUFFIX));
+	}
+
+	/**
+	 * @param path the file of the checkpoint
+	 *
+	 * @throws IOException if the checkpoint cannot be opened
+	 */
+	JournalCheckpoint(File path) throws IOException {
+		this.existed = path.length() >= 8;
+		this.file = new RandomAccessFile(path, "rw");
+		this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+	}
+
+	/**
+	 * @return false if the journal had no checkpoint yet
+	 */
+	boolean exists() {
+		return existed;
+	}
+
+	/**
+	 * @return the journal position of the first event not known to be delivered
+	 */
+	long get() {
+		return buffer.getLong(0);
+	}
+
+	/**
+	 * @param position the journal position of the first event not delivered yet
+	 */
+	void set(long position) {
+		buffer.putLong(0, position);
+	}
+
+	/**
+	 * Force the checkpoint to disk and close it.
+	 *
+	 * @throws IOException if the checkpoint cannot be forced or closed
+	 */
+	void close() throws IOException {
+		try {
+			buffer.force();
+		}
+		finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The layout of a journal rolled into cycles. Cycle 0 is the journal at the base path
+ * itself, as written when rolling is off, and cycle {@literal n} the complete journal,
+ * dictionary and index included, at {@literal <basePath>-n}. Positions in the logical
+ * journal pack the cycle in their high bits and the index within the cycle in their low
+ * {@link #INDEX_BITS} bits, so that the positions of an unrolled journal are its indices.
+ * A closed cycle may have its chronicle replaced by a {@link CompressedCycle}.
+ */
+final class JournalCycles {
+
+	static final int    INDEX_BITS  = 40;
+	static final long   INDEX_MASK  = (1L << INDEX_BITS) - 1;
+	static final String SIZE_SUFFIX = "-size";
+
+	// the index first, a cycle without it no longer being listed
+	static final String[] SUFFIXES = {".index", CompressedCycle.SUFFIX, ".data",
+	                                  NameDictionary.SUFFIX + ".data", NameDictionary.SUFFIX + ".index",
+	                                  JournalIndex.SUFFIX + ".data", JournalIndex.SUFFIX + ".index",
+	                                  SIZE_SUFFIX, CompressedCycle.SUFFIX + ".tmp"};
+
+	private JournalCycles() {
+	}
+
+	static long position(long cycle, long index) {
+		return (cycle << INDEX_BITS) | index;
+	}
+
+	static long cycle(long position) {
+		return position >>> INDEX_BITS;
+	}
+
+	static long index(long position) {
+		return position & INDEX_MASK;
+	}
+
+	/**
+	 * @return the base path of a cycle
+	 */
+	static String path(String basePath, long cycle) {
+		return cycle == 0 ? basePath : basePath + "-" + cycle;
+	}
+
+	/**
+	 * @return the cycles of a journal, oldest first
+	 */
+	static long[] list(String basePath) {
+		File base = new File(basePath);
+		File dir = base.getAbsoluteFile().getParentFile();
+		Pattern cycleFile = Pattern.compile(Pattern.quote(base.getName()) + "(?:-(\\d+))?(?:\\.index|" + Pattern.quote(CompressedCycle.SUFFIX) + ")");
+		String[] names = (null != dir ? dir.list() : null);
+		if (null == names) {
+			return new long[0];
+		}
+		long[] cycles = new long[names.length];
+		int n = 0;
+		for (String name : names) {
+			Matcher m = cycleFile.matcher(name);
+			if (m.matches()) {
+				cycles[n++] = (null != m.group(1) ? Long.parseLong(m.group(1)) : 0);
+			}
+		}
+		cycles = Arrays.copyOf(cycles, n);
+		Arrays.sort(cycles);
+		// listed twice while being compressed
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (distinct == 0 || cycles[distinct - 1] != cycles[i]) {
+				cycles[distinct++] = cycles[i];
+			}
+		}
+		return Arrays.copyOf(cycles, distinct);
+	}
+
+	/**
+	 * @return the number of bytes of records written to a cycle, or of its compressed file
+	 * once compressed, or the length of its data file if they were not counted
+	 *
+	 * @throws IOException if the size cannot be read
+	 */
+	static long size(String basePath, long cycle) throws IOException {
+		String path = path(basePath, cycle);
+		File counted = new File(path + SIZE_SUFFIX);
+		if (!counted.exists()) {
+			// the data file is preallocated, so this is an upper bound
+			return new File(path + ".data").length();
+		}
+		JournalCheckpoint size = new JournalCheckpoint(counted);
+		try {
+			return size.get();
+		}
+		finally {
+			size.close();
+		}
+	}
+
+	/**
+	 * Delete the files of a cycle or, given an archive directory, move them there.
+	 *
+	 * @param archiveDir where to move the files, or null to delete them
+	 *
+	 * @throws IOException if a file cannot be deleted or moved
+	 */
+	static void remove(String basePath, long cycle, File archiveDir) throws IOException {
+		String path = path(basePath, cycle);
+		for (String suffix : SUFFIXES) {
+			File file = new File(path + suffix);
+			if (null == archiveDir) {
+				Files.deleteIfExists(file.toPath());
+			}
+			else if (file.exists()) {
+				Files.createDirectories(archiveDir.toPath());
+				Files.move(file.toPath(),
+						new File(archiveDir, file.getName()).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+}
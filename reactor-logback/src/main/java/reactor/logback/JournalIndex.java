@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+
+import ch.qos.logback.classic.Level;
+import net.openhft.chronicle.Chronicle;
+import net.openhft.chronicle.ChronicleQueueBuilder;
+import net.openhft.chronicle.ExcerptAppender;
+import net.openhft.chronicle.ExcerptTailer;
+
+/**
+ * A sparse side index of a {@link DurableAsyncAppender} journal, kept in a side chronicle
+ * next to it. Every {@literal blockSize} records, the journal writer appends a fixed-size
+ * block entry: the range of journal excerpts covered, the oldest and newest timestamps in
+ * it and how many records of each level it holds. Block entries also carry the newest
+ * timestamp seen since the journal was created, which never decreases and is what
+ * queries binary-search on to find where a time range starts.
+ * <p>
+ * The index is a hint: records written after the last block entry, or while the index
+ * could not be written, are simply not covered and readers scan them in full.
+ */
+final class JournalIndex {
+
+	static final String SUFFIX = "-blocks";
+
+	/**
+	 * Number of level counters per block, see {@link #levelSlot(Level)}.
+	 */
+	static final int LEVELS = 5;
+
+	static final int ENTRY_SIZE = 5 * 8 + LEVELS * 4;
+
+	private final Chronicle     chronicle;
+	private final ExcerptTailer tailer;
+	private final int           blockSize;
+
+	private ExcerptAppender appender;
+	private int             records;
+	private long            blockStart;
+	private long            blockEnd;
+	private long            minTimestamp;
+	private long            maxTimestamp;
+	private long            newestTimestamp = Long.MIN_VALUE;
+	private final int[]     counts = new int[LEVELS];
+
+	/**
+	 * @param basePath the base path of the journal, not of the index itself
+	 * @param blockSize the number of records per block entry
+	 *
+	 * @throws IOException if the index cannot be opened
+	 */
+	JournalIndex(String basePath, int blockSize) throws IOException {
+		this.chronicle = ChronicleQueueBuilder.indexed(basePath + SUFFIX).build();
+		this.tailer = chronicle.createTailer();
+		this.blockSize = blockSize;
+		long last = size() - 1;
+		if (last >= 0) {
+			newestTimestamp = block(last).newestTimestamp;
+		}
+	}
+
+	/**
+	 * @param basePath the base path of the journal, not of the index itself
+	 *
+	 * @return true if the journal has an index, which version 1 journals do not
+	 */
+	static boolean exists(String basePath) {
+		return new File(basePath + SUFFIX + ".index").exists();
+	}
+
+	/**
+	 * Account for a record just written to the journal, called by its single writer.
+	 *
+	 * @param start the index of the first journal excerpt of the record
+	 * @param end the index following its last excerpt
+	 * @param timestamp the timestamp of the record
+	 * @param level the level of the record
+	 *
+	 * @throws IOException if a block entry cannot be written
+	 */
+	void add(long start, long end, long timestamp, Level level) throws IOException {
+		if (records == 0) {
+			blockStart = start;
+			minTimestamp = timestamp;
+			maxTimestamp = timestamp;
+		}
+		else {
+			minTimestamp = Math.min(minTimestamp, timestamp);
+			maxTimestamp = Math.max(maxTimestamp, timestamp);
+		}
+		blockEnd = end;
+		counts[levelSlot(level)]++;
+		if (++records >= blockSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the current partial block, if any.
+	 *
+	 * @throws IOException if the block entry cannot be written
+	 */
+	void flush() throws IOException {
+		if (records == 0) {
+			return;
+		}
+		newestTimestamp = Math.max(newestTimestamp, maxTimestamp);
+		if (appender == null) {
+			appender = chronicle.createAppender();
+		}
+		appender.startExcerpt(ENTRY_SIZE);
+		appender.writeLong(blockStart);
+		appender.writeLong(blockEnd);
+		appender.writeLong(minTimestamp);
+		appender.writeLong(maxTimestamp);
+		appender.writeLong(newestTimestamp);
+		for (int i = 0; i < LEVELS; i++) {
+			appender.writeInt(counts[i]);
+			counts[i] = 0;
+		}
+		appender.finish();
+		records = 0;
+	}
+
+	/**
+	 * @return the number of block entries
+	 */
+	long size() {
+		return chronicle.size();
+	}
+
+	/**
+	 * @param n a block number, lower than {@link #size()}
+	 *
+	 * @return the block entry
+	 */
+	Block block(long n) {
+		if (!tailer.index(n)) {
+			throw new IllegalStateException("No index block " + n);
+		}
+		Block b = new Block(tailer.readLong(),
+				tailer.readLong(),
+				tailer.readLong(),
+				tailer.readLong(),
+				tailer.readLong());
+		for (int i = 0; i < LEVELS; i++) {
+			b.counts[i] = tailer.readInt();
+		}
+		tailer.finish();
+		return b;
+	}
+
+	/**
+	 * @param timestamp a timestamp
+	 *
+	 * @return the number of the first block which may hold records at or after the
+	 * timestamp, {@link #size()} if there is none
+	 */
+	long firstBlockFrom(long timestamp) {
+		long low = 0;
+		long high = size();
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (block(mid).newestTimestamp < timestamp) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	void close() throws IOException {
+		flush();
+		chronicle.close();
+	}
+
+	static int levelSlot(Level level) {
+		switch (level.toInt()) {
+			case Level.ERROR_INT:
+				return 4;
+			case Level.WARN_INT:
+				return 3;
+			case Level.INFO_INT:
+				return 2;
+			case Level.DEBUG_INT:
+				return 1;
+			default:
+				return 0;
+		}
+	}
+
+	static final class Block {
+
+		final long  start;
+		final long  end;
+		final long  minTimestamp;
+		final long  maxTimestamp;
+		final long  newestTimestamp;
+		final int[] counts = new int[LEVELS];
+
+		Block(long start, long end, long minTimestamp, long maxTimestamp, long newestTimestamp) {
+			this.start = start;
+			this.end = end;
+			this.minTimestamp = minTimestamp;
+			this.maxTimestamp = maxTimestamp;
+			this.newestTimestamp = newestTimestamp;
+		}
+
+		/**
+		 * @return false if no record of the block can be in the time range and at or above
+		 * the level
+		 */
+		boolean mayMatch(long from, long to, Level level) {
+			if (maxTimestamp < from || minTimestamp > to) {
+				return false;
+			}
+			for (int i = levelSlot(level); i < LEVELS; i++) {
+				if (counts[i] > 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
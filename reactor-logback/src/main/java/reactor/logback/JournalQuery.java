@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import net.openhft.chronicle.ExcerptTailer;
+
+/**
+ * What a {@link JournalReader} looks for: a time range, a minimum level and optionally a
+ * regex the formatted message must match. Records are first checked undecoded, from their
+ * header and message bytes, and only decoded when they may match.
+ */
+final class JournalQuery {
+
+	static final JournalQuery ALL = new JournalQuery(Long.MIN_VALUE, Long.MAX_VALUE, Level.ALL, null);
+
+	final long    from;
+	final long    to;
+	final Level   level;
+	final Pattern regex;
+	final byte[]  literal;
+
+	/**
+	 * @param from the oldest timestamp accepted
+	 * @param to the newest timestamp accepted
+	 * @param level the lowest level accepted
+	 * @param regex the pattern the whole formatted message must match, or null
+	 */
+	JournalQuery(long from, long to, Level level, Pattern regex) {
+		this.from = from;
+		this.to = to;
+		this.level = level;
+		this.regex = regex;
+		String literal = (null != regex && regex.flags() == 0 ? requiredLiteral(regex.pattern()) : null);
+		this.literal = (null != literal ? literal.getBytes(StandardCharsets.US_ASCII) : null);
+	}
+
+	/**
+	 * @param block an index block
+	 *
+	 * @return false if no record of the block can match
+	 */
+	boolean mayMatch(JournalIndex.Block block) {
+		return block.mayMatch(from, to, level);
+	}
+
+	/**
+	 * @param ex a tailer positioned on a record, rewound on return
+	 *
+	 * @return false if the record cannot match, without decoding it
+	 */
+	boolean mayMatch(ExcerptTailer ex) {
+		return LoggingEventRecord.matches(ex, from, to, level)
+		  && (null == regex || LoggingEventRecord.messageMayMatch(ex, literal, regex));
+	}
+
+	/**
+	 * @param evt a decoded record
+	 *
+	 * @return true if the record matches
+	 */
+	boolean matches(ILoggingEvent evt) {
+		long timestamp = evt.getTimeStamp();
+		return timestamp >= from
+		  && timestamp <= to
+		  && evt.getLevel().isGreaterOrEqual(level)
+		  && (null == regex || regex.matcher(evt.getFormattedMessage()).matches());
+	}
+
+	/**
+	 * Find the longest run of plain ASCII characters every match of a regex contains,
+	 * looking only outside of groups and giving up on alternations, inline flags, escaped
+	 * letters or digits and nested character classes, whose extent is not worth parsing.
+	 *
+	 * @param regex a regex
+	 *
+	 * @return a literal, or null if none of at least two characters was found
+	 */
+	static String requiredLiteral(String regex) {
+		if (regex.indexOf('|') >= 0 || regex.contains("(?") || regex.contains("\\Q")) {
+			return null;
+		}
+		String best = "";
+		StringBuilder current = new StringBuilder();
+		int depth = 0;
+		int len = regex.length();
+		for (int i = 0; i < len; i++) {
+			char c = regex.charAt(i);
+			switch (c) {
+				case '\\':
+					char escaped = (i + 1 < len ? regex.charAt(++i) : '\\');
+					if (Character.isLetterOrDigit(escaped)) {
+						// a class, a back reference or a code point, such as \x41 or \0101
+						return null;
+					}
+					if (depth == 0 && escaped < 0x80) {
+						current.append(escaped);
+						continue;
+					}
+					break;
+				case '[':
+					// skip the character class
+					for (i++; i < len && regex.charAt(i) != ']'; i++) {
+						char d = regex.charAt(i);
+						if (d == '[') {
+							return null;
+						}
+						if (d == '\\') {
+							i++;
+						}
+					}
+					break;
+				case '(':
+					depth++;
+					break;
+				case ')':
+					depth--;
+					break;
+				case '*':
+				case '?':
+				case '{':
+					// the previous character may not be there at all
+					if (current.length() > 0) {
+						current.setLength(current.length() - 1);
+					}
+					if (c == '{') {
+						i = Math.max(i, regex.indexOf('}', i));
+					}
+					break;
+				case '+':
+				case '.':
+				case '^':
+				case '$':
+					break;
+				default:
+					if (depth == 0 && c < 0x80) {
+						current.append(c);
+						continue;
+					}
+					break;
+			}
+			if (current.length() > best.length()) {
+				best = current.toString();
+			}
+			current.setLength(0);
+		}
+		if (current.length() > best.length()) {
+			best = current.toString();
+		}
+		return best.length() >= 2 ? best : null;
+	}
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import net.openhft.chronicle.Chronicle;
+import net.openhft.chronicle.ChronicleQueueBuilder;
+import net.openhft.chronicle.ExcerptTailer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Reads the records of a {@link DurableAsyncAppender} journal, using its
+ * {@link JournalIndex} to skip the parts that cannot match a query and the record
+ * headers and message bytes to skip decoding the records that do not. A scan can also
+ * be split across several threads, each with its own tailer, the results still being
+ * emitted in journal order. A journal rolled into {@link JournalCycles cycles} is read
+ * as one, records being located by their journal position.
+ */
+final class JournalReader {
+
+	/**
+	 * Number of segments per scanning thread, so that a thread done with a sparse segment
+	 * can pick up another one.
+	 */
+	static final int SEGMENTS_PER_THREAD = 4;
+
+	private final String      basePath;
+	// oldest first, only added to when following
+	private final List<Cycle> cycles = new ArrayList<>();
+
+	private LoggerContextVO loggerContextVO;
+
+	/**
+	 * Number of records decoded so far.
+	 */
+	final LongAdder decoded = new LongAdder();
+
+	/**
+	 * @param basePath the base path of the journal
+	 *
+	 * @throws IOException if the journal cannot be opened
+	 */
+	JournalReader(String basePath) throws IOException {
+		this.basePath = basePath;
+		try {
+			for (long cycle : JournalCycles.list(basePath)) {
+				cycles.add(new Cycle(cycle));
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param loggerContextVO the context given to the records read, for layouts printing
+	 * it
+	 */
+	void setLoggerContextVO(LoggerContextVO loggerContextVO) {
+		this.loggerContextVO = loggerContextVO;
+	}
+
+	/**
+	 * Stream the records matching a query, in journal order.
+	 *
+	 * @param query the query
+	 * @param out the consumer of the matching records
+	 */
+	void scan(JournalQuery query, Consumer<? super ILoggingEvent> out) {
+		scan(query, 0, out);
+	}
+
+	/**
+	 * Stream the records matching a query from a position in the journal on, in journal
+	 * order, one record at a time.
+	 *
+	 * @param query the query
+	 * @param fromPosition the journal position to start from
+	 * @param out the consumer of the matching records
+	 */
+	void scan(JournalQuery query, long fromPosition, Consumer<? super ILoggingEvent> out) {
+		for (long[] range : ranges(query, fromPosition)) {
+			Cycle cycle = cycles.get((int) range[0]);
+			scanRange(cycle, cycle.tailer, range[1], range[2], query, Integer.MAX_VALUE, out);
+		}
+	}
+
+	/**
+	 * Find the first records matching a query from a position in the journal on.
+	 *
+	 * @param query the query
+	 * @param fromPosition the journal position to start from
+	 * @param count the number of records wanted
+	 *
+	 * @return up to {@literal count} matching records, in journal order
+	 */
+	List<ILoggingEvent> next(JournalQuery query, long fromPosition, int count) {
+		List<ILoggingEvent> events = new ArrayList<>(Math.min(count, 1024));
+		for (long[] range : ranges(query, fromPosition)) {
+			if (events.size() >= count) {
+				break;
+			}
+			Cycle cycle = cycles.get((int) range[0]);
+			scanRange(cycle, cycle.tailer, range[1], range[2], query, count - events.size(), events::add);
+		}
+		return events;
+	}
+
+	/**
+	 * Stream the records matching a query, in journal order, scanning the journal from
+	 * several threads. The records are handed to the consumer from one thread at a time.
+	 *
+	 * @param query the query
+	 * @param fromPosition the journal position to start from
+	 * @param parallelism the number of scanning threads
+	 * @param out the consumer of the matching records
+	 */
+	void parallelScan(JournalQuery query,
+			long fromPosition,
+			int parallelism,
+			Consumer<? super ILoggingEvent> out) {
+		List<long[]> segments = split(ranges(query, fromPosition), parallelism * SEGMENTS_PER_THREAD);
+		if (parallelism <= 1 || segments.size() <= 1) {
+			for (long[] segment : segments) {
+				Cycle cycle = cycles.get((int) segment[0]);
+				scanRange(cycle, cycle.tailer, segment[1], segment[2], query, Integer.MAX_VALUE, out);
+			}
+			return;
+		}
+		Scheduler workers = Schedulers.newParallel("journal-scan", parallelism);
+		try {
+			Flux.fromIterable(segments)
+			    .flatMapSequential(segment -> Mono.fromCallable(() -> scanSegment(segment, query))
+			                                      .subscribeOn(workers),
+					    parallelism,
+					    1)
+			    .concatMapIterable(events -> events)
+			    .doOnNext(out)
+			    .blockLast();
+		}
+		finally {
+			workers.dispose();
+		}
+	}
+
+	/**
+	 * Find the last records matching a query before a position in the journal, walking
+	 * the journal backwards from there so that only those records and the ones skipped
+	 * between them are read.
+	 *
+	 * @param query the query
+	 * @param beforePosition the journal position to look before, {@link Long#MAX_VALUE}
+	 * for the end of the journal
+	 * @param count the number of records wanted
+	 *
+	 * @return up to {@literal count} matching records, in journal order
+	 */
+	List<ILoggingEvent> previous(JournalQuery query, long beforePosition, int count) {
+		List<ILoggingEvent> events = new ArrayList<>(Math.min(count, 1024));
+		List<long[]> ranges = ranges(query, 0);
+		long beforeCycle = JournalCycles.cycle(beforePosition);
+		for (int r = ranges.size() - 1; r >= 0 && events.size() < count; r--) {
+			long[] range = ranges.get(r);
+			Cycle cycle = cycles.get((int) range[0]);
+			if (cycle.number > beforeCycle) {
+				continue;
+			}
+			long end = (cycle.number < beforeCycle ? range[2] :
+					Math.min(range[2], JournalCycles.index(beforePosition)));
+			ExcerptTailer tailer = cycle.tailer;
+			for (long i = end - 1; i >= range[1] && events.size() < count; i--) {
+				// padding entries cannot be positioned on
+				if (!tailer.index(i)) {
+					continue;
+				}
+				if (query.mayMatch(tailer)) {
+					LoggingEventRecord rec = LoggingEventRecord.read(tailer, cycle.names);
+					decoded.increment();
+					if (null != rec && query.matches(rec)) {
+						rec.setLoggerContextVO(loggerContextVO);
+						events.add(rec);
+					}
+				}
+				tailer.finish();
+			}
+		}
+		Collections.reverse(events);
+		return events;
+	}
+
+	/**
+	 * Stream the records matching a query from a journal position on, then keep streaming
+	 * them as they are written, moving on to the next cycle when the writer rolls, until
+	 * the sink is cancelled. Runs on the calling thread, polling the journal and waiting
+	 * between empty polls as the given strategy says.
+	 *
+	 * @param query the query
+	 * @param fromPosition the journal position to start from, at most {@link #size()}
+	 * @param wait how to wait for new records
+	 * @param sink the sink of the matching records, only fed what it requested
+	 *
+	 * @throws IOException if the journal cannot be followed
+	 */
+	void follow(JournalQuery query,
+			long fromPosition,
+			FollowWaitStrategy wait,
+			FluxSink<? super ILoggingEvent> sink) throws IOException {
+		Cycle cycle = null;
+		ExcerptTailer follower = null;
+		for (Cycle c : cycles) {
+			if (c.number >= JournalCycles.cycle(fromPosition)) {
+				cycle = c;
+				follower = c.createTailer();
+				long from = (c.number == JournalCycles.cycle(fromPosition) ? JournalCycles.index(fromPosition) : 0);
+				if (from > 0) {
+					// positions on a written entry even if it is padding, the next one is from
+					follower.index(from - 1);
+				}
+				break;
+			}
+		}
+		try {
+			int[] chunkIdle = new int[1];
+			Runnable awaitChunk = () -> {
+				if (sink.isCancelled()) {
+					throw new CancellationException();
+				}
+				chunkIdle[0] = wait.idle(chunkIdle[0]);
+			};
+			int parking = wait.spins + wait.yields;
+			boolean rolled = false;
+			int idle = 0;
+			while (!sink.isCancelled()) {
+				if (sink.requestedFromDownstream() == 0) {
+					idle = wait.idle(idle);
+					continue;
+				}
+				if (null != follower && follower.nextIndex()) {
+					idle = 0;
+					if (query.mayMatch(follower)) {
+						chunkIdle[0] = 0;
+						LoggingEventRecord rec = LoggingEventRecord.read(follower, cycle.names, awaitChunk);
+						decoded.increment();
+						if (null != rec && query.matches(rec)) {
+							rec.setLoggerContextVO(loggerContextVO);
+							sink.next(rec);
+						}
+					}
+					follower.finish();
+					continue;
+				}
+				long nextCycle = (null != cycle ? cycle.number + 1 : 0);
+				if (!rolled) {
+					// only looked for once parking, a cycle is rolled rarely
+					rolled = idle >= parking && new File(JournalCycles.path(basePath, nextCycle) + ".index").exists();
+					if (!rolled) {
+						idle = wait.idle(idle);
+					}
+					continue;
+				}
+				// the writer starts a cycle once done with the previous one, which has just been drained
+				cycle = new Cycle(nextCycle);
+				cycles.add(cycle);
+				if (null != follower) {
+					follower.close();
+				}
+				follower = cycle.createTailer();
+				rolled = false;
+				idle = 0;
+			}
+		}
+		catch (CancellationException e) {
+			// cancelled while waiting for a split record
+		}
+		finally {
+			if (null != follower) {
+				follower.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the journal position following the last record when this reader was opened
+	 */
+	long size() {
+		if (cycles.isEmpty()) {
+			return 0;
+		}
+		Cycle last = cycles.get(cycles.size() - 1);
+		return JournalCycles.position(last.number, last.size());
+	}
+
+	void close() throws IOException {
+		IOException error = null;
+		for (Cycle cycle : cycles) {
+			try {
+				cycle.close();
+			}
+			catch (IOException e) {
+				error = e;
+			}
+		}
+		if (null != error) {
+			throw error;
+		}
+	}
+
+	/**
+	 * @return the {cycle slot, start, end} index ranges which may hold matching records:
+	 * the indexed blocks which may match, the gaps between blocks and the records not
+	 * indexed yet, from a journal position on
+	 */
+	private List<long[]> ranges(JournalQuery query, long fromPosition) {
+		List<long[]> ranges = new ArrayList<>();
+		long fromCycle = JournalCycles.cycle(fromPosition);
+		for (int c = 0; c < cycles.size(); c++) {
+			Cycle cycle = cycles.get(c);
+			if (cycle.number < fromCycle) {
+				continue;
+			}
+			long fromIndex = (cycle.number == fromCycle ? JournalCycles.index(fromPosition) : 0);
+			JournalIndex index = cycle.index;
+			long limit = cycle.size();
+			if (null == index) {
+				addRange(ranges, c, fromIndex, limit);
+				continue;
+			}
+			long blocks = index.size();
+			long b = index.firstBlockFrom(query.from);
+			long cursor = Math.max(fromIndex, b > 0 ? index.block(b - 1).end : 0);
+			for (; b < blocks && cursor < limit; b++) {
+				JournalIndex.Block block = index.block(b);
+				if (block.end <= cursor) {
+					continue;
+				}
+				if (block.start > cursor) {
+					// not indexed
+					addRange(ranges, c, cursor, Math.min(block.start, limit));
+				}
+				if (query.mayMatch(block)) {
+					addRange(ranges, c, Math.max(block.start, cursor), Math.min(block.end, limit));
+				}
+				cursor = Math.max(cursor, block.end);
+			}
+			addRange(ranges, c, cursor, limit);
+		}
+		return ranges;
+	}
+
+	private static void addRange(List<long[]> ranges, int cycle, long start, long end) {
+		if (start >= end) {
+			return;
+		}
+		long[] last = (ranges.isEmpty() ? null : ranges.get(ranges.size() - 1));
+		if (null != last && last[0] == cycle && last[2] == start) {
+			last[2] = end;
+		}
+		else {
+			ranges.add(new long[]{cycle, start, end});
+		}
+	}
+
+	/**
+	 * Cut ranges so that no segment spans more than about the total length divided by
+	 * the number of segments wanted.
+	 */
+	private static List<long[]> split(List<long[]> ranges, int segments) {
+		long total = 0;
+		for (long[] range : ranges) {
+			total += range[2] - range[1];
+		}
+		long length = Math.max(1, (total + segments - 1) / Math.max(1, segments));
+		List<long[]> split = new ArrayList<>();
+		for (long[] range : ranges) {
+			for (long start = range[1]; start < range[2]; start += length) {
+				split.add(new long[]{range[0], start, Math.min(range[2], start + length)});
+			}
+		}
+		return split;
+	}
+
+	private List<ILoggingEvent> scanSegment(long[] segment, JournalQuery query) throws IOException {
+		Cycle cycle = cycles.get((int) segment[0]);
+		ExcerptTailer segmentTailer = cycle.createTailer();
+		try {
+			List<ILoggingEvent> events = new ArrayList<>();
+			scanRange(cycle, segmentTailer, segment[1], segment[2], query, Integer.MAX_VALUE, events::add);
+			return events.isEmpty() ? Collections.emptyList() : events;
+		}
+		finally {
+			segmentTailer.close();
+		}
+	}
+
+	/**
+	 * @return the number of matching records handed to the consumer, at most {@literal limit}
+	 */
+	private int scanRange(Cycle cycle,
+			ExcerptTailer tailer,
+			long start,
+			long end,
+			JournalQuery query,
+			int limit,
+			Consumer<? super ILoggingEvent> out) {
+		if (!seek(cycle, tailer, start, end)) {
+			return 0;
+		}
+		int n = 0;
+		do {
+			if (tailer.index() >= end) {
+				break;
+			}
+			if (query.mayMatch(tailer)) {
+				LoggingEventRecord rec = LoggingEventRecord.read(tailer, cycle.names);
+				decoded.increment();
+				if (null != rec && query.matches(rec)) {
+					rec.setLoggerContextVO(loggerContextVO);
+					out.accept(rec);
+					n++;
+				}
+			}
+			tailer.finish();
+		}
+		while (n < limit && tailer.nextIndex());
+		return n;
+	}
+
+	private static boolean seek(Cycle cycle, ExcerptTailer tailer, long start, long end) {
+		long limit = Math.min(end, cycle.size());
+		for (long i = start; i < limit; i++) {
+			// padding entries cannot be positioned on
+			if (tailer.index(i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The files of one journal cycle, its chronicle or, once compressed, its
+	 * {@link CompressedCycle}, along with its name dictionary and index if it has them.
+	 * Opening a cycle never creates files, the journal may be read-only.
+	 */
+	final class Cycle {
+
+		final long            number;
+		final Chronicle       chronicle;
+		final CompressedCycle compressed;
+		// null in version 1 journals
+		final NameDictionary  names;
+		final JournalIndex    index;
+		final ExcerptTailer   tailer;
+
+		Cycle(long number) throws IOException {
+			String path = JournalCycles.path(basePath, number);
+			this.number = number;
+			if (CompressedCycle.exists(path)) {
+				this.chronicle = null;
+				this.compressed = new CompressedCycle(path);
+			}
+			else {
+				this.chronicle = ChronicleQueueBuilder.indexed(path).build();
+				this.compressed = null;
+			}
+			this.names = NameDictionary.exists(path) ? new NameDictionary(path) : null;
+			// without an index, queries scan the whole cycle
+			this.index = JournalIndex.exists(path) ? new JournalIndex(path, Integer.MAX_VALUE) : null;
+			this.tailer = createTailer();
+		}
+
+		/**
+		 * @return the number of excerpts of the cycle when it was opened
+		 */
+		long size() {
+			return null != compressed ? compressed.size() : chronicle.size();
+		}
+
+		ExcerptTailer createTailer() throws IOException {
+			return null != compressed ? compressed.createTailer() : chronicle.createTailer();
+		}
+
+		void close() throws IOException {
+			try {
+				tailer.close();
+				if (null != index) {
+					index.close();
+				}
+				if (null != names) {
+					names.close();
+				}
+			}
+			finally {
+				if (null != compressed) {
+					compressed.close();
+				}
+				else {
+					chronicle.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.ContextAware;
+import net.openhft.chronicle.Chronicle;
+import net.openhft.chronicle.ChronicleQueueBuilder;
+import net.openhft.chronicle.ExcerptAppender;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.Nullable;
+
+/**
+ * Writes logging events to the single-writer {@link ExcerptAppender} of a
+ * {@link DurableAsyncAppender} journal without funneling every producer through a
+ * monitor. Producers publish their event and whichever of them finds the journal free
+ * becomes the combiner: it writes every pending record in arrival order and queues them
+ * for hand-off. Whichever producer then finds the hand-off free hands the events on in
+ * journal order if asked to, which may block, and wakes up the producers parked on them,
+ * so that a blocked hand-off never keeps the journal from being written. With
+ * {@link Durability#SYNC} the journal files are forced once for the whole pass before
+ * the hand-off, with {@link Durability#GROUP} a background thread forces them every
+ * {@literal syncEvery} records or {@literal syncInterval} milliseconds.
+ * <p>
+ * When rolling is on, the combiner starts a new {@link JournalCycles journal cycle} once
+ * the current one is old or large enough, and a background thread compresses the closed
+ * cycles if asked to and removes the oldest ones past the retention limits, as long as
+ * they do not hold events not delivered yet.
+ */
+final class JournalWriter {
+
+	/**
+	 * Upper bound of records written in one combining pass, so that a combiner under
+	 * sustained load eventually gets back to its own caller.
+	 */
+	static final int MAX_COMBINED = 256;
+
+	private final String                               basePath;
+	private final boolean                              includeCallerData;
+	private final boolean                              compactMdc;
+	private final Durability                           durability;
+	private final long                                 syncEvery;
+	private final int                                  indexBlockSize;
+	private final long                                 rollInterval;
+	private final long                                 rollSize;
+	private final int                                  maxCycles;
+	private final long                                 maxTotalSize;
+	private final File                                 archiveDir;
+	private final boolean                              compress;
+	private final ContextAware                         status;
+	private final Scheduler                            syncer;
+	private final Scheduler                            housekeeper;
+	private final ObjLongConsumer<ILoggingEvent>       onWritten;
+	private final LongSupplier                         undelivered;
+	private final PendingRecord[]                      combined   = new PendingRecord[MAX_COMBINED];
+	private final ConcurrentLinkedQueue<PendingRecord> pending    = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean                        combining  = new AtomicBoolean();
+	private final ConcurrentLinkedQueue<PendingRecord> handOffs   = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean                        handingOff = new AtomicBoolean();
+	private final ThreadLocal<PendingRecord>           records    =
+			ThreadLocal.withInitial(PendingRecord::new);
+
+	// only replaced by the combiner, with the sync lock held
+	private volatile Cycle cycle;
+
+	// only updated by the combiner
+	private volatile long written;
+	private long          lastSyncRequest;
+
+	// only used by the housekeeper
+	private long retentionHeldAt = -1;
+
+	volatile long synced;
+	static final AtomicLongFieldUpdater<JournalWriter> SYNCED =
+			AtomicLongFieldUpdater.newUpdater(JournalWriter.class, "synced");
+
+	/**
+	 * Open the journal, continuing its last cycle or, when rolling is on, starting a new
+	 * one.
+	 *
+	 * @param basePath the journal base path
+	 * @param settings the appender whose durability, index, rolling and retention settings
+	 * apply, also where to report background failures
+	 * @param onWritten called with each event written and the journal position following
+	 * its record, one event at a time, in journal order and once durable as the settings
+	 * say, or null; it may block without holding up the journal
+	 *
+	 * @throws IOException if the journal files cannot be opened
+	 */
+	JournalWriter(String basePath,
+			DurableAsyncAppender settings,
+			@Nullable ObjLongConsumer<ILoggingEvent> onWritten) throws IOException {
+		this.basePath = basePath;
+		this.includeCallerData = settings.isIncludeCallerData();
+		this.compactMdc = settings.isCompactMdc();
+		this.durability = settings.getDurability();
+		this.syncEvery = settings.getSyncEvery();
+		this.indexBlockSize = settings.getIndexBlockSize();
+		this.rollInterval = settings.getRollInterval();
+		this.rollSize = settings.getRollSize();
+		this.maxCycles = settings.getMaxCycles();
+		this.maxTotalSize = settings.getMaxTotalSize();
+		this.archiveDir = (null != settings.getArchivePath() ? new File(settings.getArchivePath()) : null);
+		this.compress = settings.isCompress();
+		this.status = settings;
+		this.onWritten = onWritten;
+		this.undelivered = settings::undeliveredPosition;
+
+		long[] cycles = JournalCycles.list(basePath);
+		long last = (cycles.length > 0 ? cycles[cycles.length - 1] : -1);
+		// a new cycle on every start keeps the size of the current one exact
+		boolean rolling = rollInterval > 0 || rollSize > 0;
+		this.cycle = new Cycle(rolling || last < 0 ? last + 1 : last);
+
+		if (durability == Durability.GROUP) {
+			this.syncer = Schedulers.newSingle("logger-sync");
+			this.syncer.schedulePeriodically(this::syncQuietly,
+					settings.getSyncInterval(),
+					settings.getSyncInterval(),
+					TimeUnit.MILLISECONDS);
+		}
+		else {
+			this.syncer = null;
+		}
+		if (compress || maxCycles > 0 || maxTotalSize > 0) {
+			this.housekeeper = Schedulers.newSingle("logger-housekeeping");
+			this.housekeeper.schedule(this::housekeep);
+		}
+		else {
+			this.housekeeper = null;
+		}
+	}
+
+	/**
+	 * Write an event to the journal, returning once it has been written by this thread or
+	 * by another producer and, with {@link Durability#SYNC}, forced to disk.
+	 *
+	 * @param evt an event already prepared for deferred processing
+	 */
+	void write(ILoggingEvent evt) {
+		PendingRecord rec = records.get();
+		rec.event = evt;
+		rec.error = null;
+		rec.done = false;
+		pending.offer(rec);
+
+		for (; ; ) {
+			if (!combining.get() && combining.compareAndSet(false, true)) {
+				try {
+					combine();
+				}
+				finally {
+					combining.set(false);
+				}
+				wakeNext(pending);
+			}
+			handOff();
+			if (rec.done) {
+				break;
+			}
+			LockSupport.park(this);
+		}
+
+		rec.event = null;
+		Throwable error = rec.error;
+		if (error != null) {
+			rec.error = null;
+			if (error instanceof RuntimeException) {
+				throw (RuntimeException) error;
+			}
+			throw new IllegalStateException(error.getMessage(), error);
+		}
+	}
+
+	/**
+	 * @return the number of records written to the journal but not forced to disk yet
+	 */
+	long getDurabilityLag() {
+		return Math.max(0L, written - synced);
+	}
+
+	/**
+	 * @return the journal position following the last record written
+	 */
+	long position() {
+		Cycle cycle = this.cycle;
+		return JournalCycles.position(cycle.number, cycle.appender.lastWrittenIndex() + 1);
+	}
+
+	/**
+	 * Force the journal to disk.
+	 *
+	 * @throws IOException if the journal files cannot be forced
+	 */
+	void sync() throws IOException {
+		long target = written;
+		synchronized (this) {
+			// a cycle is forced before it is replaced
+			cycle.force();
+		}
+		for (; ; ) {
+			long s = synced;
+			if (s >= target || SYNCED.compareAndSet(this, s, target)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop the background tasks, force the journal one last time and close its files.
+	 *
+	 * @throws IOException if the journal files cannot be forced or closed
+	 */
+	void close() throws IOException {
+		if (syncer != null) {
+			syncer.dispose();
+		}
+		if (housekeeper != null) {
+			housekeeper.dispose();
+		}
+		try {
+			sync();
+		}
+		finally {
+			cycle.close();
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			sync();
+		}
+		catch (Throwable t) {
+			status.addError("Failed to sync journal: " + t.getMessage(), t);
+		}
+	}
+
+	private void combine() {
+		Cycle cycle = this.cycle;
+		if (cycle.rollDue()) {
+			cycle = roll(cycle);
+		}
+
+		int n = 0;
+		PendingRecord rec;
+		while (n < MAX_COMBINED && (rec = pending.poll()) != null) {
+			combined[n++] = rec;
+			long start = cycle.appender.lastWrittenIndex() + 1;
+			try {
+				cycle.bytes += LoggingEventRecord.write(cycle.appender, rec.event, includeCallerData, compactMdc, cycle.names);
+			}
+			catch (Throwable t) {
+				rec.error = t;
+				continue;
+			}
+			long end = cycle.appender.lastWrittenIndex() + 1;
+			rec.end = JournalCycles.position(cycle.number, end);
+			try {
+				cycle.journalIndex.add(start, end, rec.event.getTimeStamp(), rec.event.getLevel());
+			}
+			catch (Throwable t) {
+				// the record is written, queries will just scan it
+				status.addError("Failed to index journal: " + t.getMessage(), t);
+			}
+		}
+		if (n == 0) {
+			return;
+		}
+		cycle.size.set(cycle.bytes);
+		long w = written + n;
+		written = w;
+
+		Throwable syncError = null;
+		if (durability == Durability.SYNC) {
+			try {
+				sync();
+			}
+			catch (Throwable t) {
+				syncError = t;
+			}
+		}
+		else if (syncer != null && w - lastSyncRequest >= syncEvery) {
+			lastSyncRequest = w;
+			syncer.schedule(this::syncQuietly);
+		}
+
+		for (int i = 0; i < n; i++) {
+			rec = combined[i];
+			combined[i] = null;
+			if (rec.error == null) {
+				rec.error = syncError;
+			}
+			// queued with the combining flag held, so in journal order
+			handOffs.offer(rec);
+		}
+	}
+
+	/**
+	 * Hand the written records on and release their producers, unless another producer
+	 * is already doing so, in which case it also takes the records queued meanwhile.
+	 */
+	private void handOff() {
+		while (!handOffs.isEmpty() && !handingOff.get() && handingOff.compareAndSet(false, true)) {
+			try {
+				PendingRecord rec;
+				while ((rec = handOffs.poll()) != null) {
+					if (rec.error == null && onWritten != null) {
+						try {
+							onWritten.accept(rec.event, rec.end);
+						}
+						catch (Throwable t) {
+							rec.error = t;
+						}
+					}
+					rec.done = true;
+					LockSupport.unpark(rec.waiter);
+				}
+			}
+			finally {
+				handingOff.set(false);
+			}
+			wakeNext(handOffs);
+		}
+	}
+
+	/**
+	 * Wake up the producer of the oldest record left in a queue, which a producer parked
+	 * while another thread held the flag for that queue.
+	 */
+	private static void wakeNext(ConcurrentLinkedQueue<PendingRecord> queue) {
+		PendingRecord next = queue.peek();
+		if (next != null) {
+			LockSupport.unpark(next.waiter);
+		}
+	}
+
+	/**
+	 * Start the next cycle, which readers take as the end of the current one.
+	 *
+	 * @return the cycle to write to
+	 */
+	private Cycle roll(Cycle current) {
+		Cycle next;
+		try {
+			next = new Cycle(current.number + 1);
+		}
+		catch (Throwable t) {
+			current.rollable = false;
+			status.addError("Failed to roll journal, keeping on with cycle " + current.number + ": " + t.getMessage(), t);
+			return current;
+		}
+		try {
+			synchronized (this) {
+				current.force();
+				this.cycle = next;
+			}
+			current.close();
+		}
+		catch (Throwable t) {
+			status.addError("Failed to close journal cycle " + current.number + ": " + t.getMessage(), t);
+		}
+		if (housekeeper != null) {
+			housekeeper.schedule(this::housekeep);
+		}
+		return next;
+	}
+
+	private void housekeep() {
+		if (compress) {
+			compressClosedCycles();
+		}
+		if (maxCycles > 0 || maxTotalSize > 0) {
+			applyRetention();
+		}
+	}
+
+	private void compressClosedCycles() {
+		long current = cycle.number;
+		for (long c : JournalCycles.list(basePath)) {
+			if (c >= current) {
+				break;
+			}
+			String path = JournalCycles.path(basePath, c);
+			if (!new File(path + ".index").exists()) {
+				continue;
+			}
+			try {
+				long length = CompressedCycle.compress(path);
+				// retention counts what the cycle takes on disk from now on
+				JournalCheckpoint size = new JournalCheckpoint(new File(path + JournalCycles.SIZE_SUFFIX));
+				try {
+					size.set(length);
+				}
+				finally {
+					size.close();
+				}
+			}
+			catch (Throwable t) {
+				status.addError("Failed to compress journal cycle " + c + ": " + t.getMessage(), t);
+			}
+		}
+	}
+
+	private void applyRetention() {
+		try {
+			long current = cycle.number;
+			// delivery would resume from there after a restart
+			long firstUndelivered = JournalCycles.cycle(undelivered.getAsLong());
+			long[] cycles = JournalCycles.list(basePath);
+			long[] sizes = new long[cycles.length];
+			long total = 0;
+			for (int i = 0; i < cycles.length; i++) {
+				sizes[i] = JournalCycles.size(basePath, cycles[i]);
+				total += sizes[i];
+			}
+			for (int i = 0; i < cycles.length && cycles[i] < current; i++) {
+				boolean tooMany = maxCycles > 0 && cycles.length - i > maxCycles;
+				boolean tooLarge = maxTotalSize > 0 && total > maxTotalSize;
+				if (!tooMany && !tooLarge) {
+					break;
+				}
+				if (cycles[i] >= firstUndelivered) {
+					if (retentionHeldAt != cycles[i]) {
+						retentionHeldAt = cycles[i];
+						status.addWarn("Keeping journal cycle " + cycles[i] + " past the retention limits, "
+								+ "it holds events not delivered yet");
+					}
+					break;
+				}
+				JournalCycles.remove(basePath, cycles[i], archiveDir);
+				total -= sizes[i];
+			}
+		}
+		catch (Throwable t) {
+			status.addError("Failed to apply journal retention: " + t.getMessage(), t);
+		}
+	}
+
+	static final class PendingRecord {
+
+		// records are per thread
+		final Thread     waiter = Thread.currentThread();
+		ILoggingEvent    event;
+		Throwable        error;
+		long             end;
+		volatile boolean done;
+	}
+
+	/**
+	 * The files of one journal cycle, only written by the combiner.
+	 */
+	final class Cycle {
+
+		final long              number;
+		final Chronicle         chronicle;
+		final ExcerptAppender   appender;
+		final FileChannel       data;
+		final FileChannel       index;
+		final NameDictionary    names;
+		final JournalIndex      journalIndex;
+		final JournalCheckpoint size;
+		final long              rollAt;
+
+		long    bytes;
+		boolean rollable = true;
+
+		Cycle(long number) throws IOException {
+			String path = JournalCycles.path(basePath, number);
+			this.number = number;
+			this.chronicle = ChronicleQueueBuilder.indexed(path).build();
+			this.appender = chronicle.createAppender();
+			this.data = new RandomAccessFile(path + ".data", "rw").getChannel();
+			this.index = new RandomAccessFile(path + ".index", "rw").getChannel();
+			this.names = new NameDictionary(path);
+			this.journalIndex = new JournalIndex(path, indexBlockSize);
+			this.size = new JournalCheckpoint(new File(path + JournalCycles.SIZE_SUFFIX));
+			this.bytes = size.get();
+			this.rollAt = (rollInterval > 0 ? System.currentTimeMillis() + rollInterval : Long.MAX_VALUE);
+		}
+
+		boolean rollDue() {
+			return rollable && ((rollSize > 0 && bytes >= rollSize)
+					|| (rollAt != Long.MAX_VALUE && System.currentTimeMillis() >= rollAt));
+		}
+
+		void force() throws IOException {
+			// fsync also covers the pages dirtied through the chronicle's mappings
+			data.force(false);
+			index.force(false);
+		}
+
+		void close() throws IOException {
+			try {
+				appender.flush();
+				data.close();
+				index.close();
+			}
+			finally {
+				try {
+					names.close();
+					journalIndex.close();
+				}
+				finally {
+					try {
+						size.close();
+					}
+					finally {
+						chronicle.close();
+					}
+				}
+			}
+		}
+	}
+}
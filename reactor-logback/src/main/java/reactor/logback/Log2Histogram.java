@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in power-of-two buckets of nanoseconds. Recording is a
+ * leading-zero count and an add to a {@link LongAdder}, cheap enough to stay on in
+ * production, at the cost of only knowing a duration within a factor of two. Bucket
+ * {@literal i} counts the durations in [2^(i-1), 2^i) nanoseconds, bucket 0 the ones too
+ * short to be measured.
+ */
+final class Log2Histogram {
+
+	static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+	Log2Histogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	void record(long nanos) {
+		buckets[bucket(nanos)].increment();
+	}
+
+	/**
+	 * @param nanos the duration of each of the samples
+	 * @param count the number of samples
+	 */
+	void record(long nanos, long count) {
+		buckets[bucket(nanos)].add(count);
+	}
+
+	/**
+	 * @return the count of every bucket
+	 */
+	long[] snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 *
+	 * @return the upper bound of the bucket holding that quantile, in nanoseconds, or 0
+	 * if nothing was recorded
+	 */
+	long quantile(double quantile) {
+		long[] counts = snapshot();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+			}
+		}
+		return 0;
+	}
+
+	static int bucket(long nanos) {
+		return nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+	}
+}
@@ -1,145 +1,718 @@
 /*
- * Copyright (c) 2011-2014 Pivotal Software, Inc.
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
  *
- *  Licensed under the Apache License, Version 2.0 (the "License");
- *  you may not use this file except in compliance with the License.
- *  You may obtain a copy of the License at
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
  *
- *         http://www.apache.org/licenses/LICENSE-2.0
+ *       http://www.apache.org/licenses/LICENSE-2.0
  *
- *  Unless required by applicable law or agreed to in writing, software
- *  distributed under the License is distributed on an "AS IS" BASIS,
- *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *  See the License for the specific language governing permissions and
- *  limitations under the License.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
  */
 
 package reactor.logback;
 
-import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
 import net.openhft.chronicle.ExcerptAppender;
 import net.openhft.chronicle.ExcerptTailer;
+import net.openhft.lang.io.ByteBufferBytes;
+import net.openhft.lang.io.Bytes;
+import org.slf4j.Marker;
+import org.slf4j.helpers.MessageFormatter;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
+ * A logging event as recorded in a {@link DurableAsyncAppender} journal.
+ * <p>
+ * Version 1 records hold fixed-size lengths, every name as a full string and stack frames and throwables in
+ * serialized form. Version 2 records use stop-bit encoded numbers, refer to logger, thread, class, method and
+ * file names through the journal's {@link NameDictionary}, and encode stack frames and throwables field by field, only
+ * storing the frames a cause does not share with its enclosing throwable. Caller data captured by {@link CallSites}
+ * is stored as the dictionary id of its call site. MDC keys are dictionary ids too, and the set of keys of an MDC
+ * is stored once in the dictionary, records only carrying its id and their values. The structure of a throwable,
+ * its classes and frames down its causes, is stored once in the dictionary too, records only carrying its id and
+ * their messages, and is resolved when the throwable is first asked for. Both versions can be read.
+ *
  * @author Jon Brisbin
  */
-class LoggingEventRecord implements Serializable {
+class LoggingEventRecord implements ILoggingEvent, Serializable {
+
+	static final int VERSION_1 = 1;
+	static final int VERSION_2 = 2;
+
+	/**
+	 * Leading byte of the first excerpt of a record split over several excerpts.
+	 */
+	static final int CHUNK_HEAD = 3;
+
+	/**
+	 * Leading byte of the following excerpts of a split record.
+	 */
+	static final int CHUNK_NEXT = 4;
+
+	/**
+	 * Largest excerpt reserved for a single record, bigger ones are split.
+	 */
+	static final int MAX_EXCERPT_SIZE = 64 * 1024;
+
+	private static final int MAX_STOP_BIT = 10;
+	private static final int FRAME_BOUND  = 4 * MAX_STOP_BIT;
 
-	private static final long   serialVersionUID = 4286033251454846145L;
-	private static final String CRLF             = "\r\n";
+	// the byte leading the throwable of a version 2 record
+	private static final int NO_THROWABLE     = 0;
+	private static final int INLINE_THROWABLE = 1;
+	private static final int SHARED_THROWABLE = 2;
+
+	private static final long                serialVersionUID = 4286033251454846145L;
+	private static final StackTraceElement[] NO_FRAMES        = new StackTraceElement[0];
 
 	private long                timestamp;
 	private String              threadName;
 	private String              loggerName;
-	private int                 level;
+	private Level               level;
 	private String              message;
 	private Object[]            args;
+	private String              formattedMessage;
 	private StackTraceElement[] callerData;
 	private Map<String, String> mdcProps;
-	private Throwable           cause;
+	private IThrowableProxy     throwableProxy;
+	private LoggerContextVO     loggerContextVO;
+
+	// a shared throwable not resolved yet
+	private transient NameDictionary throwableNames;
+	private transient int            throwableId;
+	private transient String[]       throwableMessages;
 
 	public LoggingEventRecord() {
 	}
 
-	public long getTimestamp() {
+	@Override
+	public long getTimeStamp() {
 		return timestamp;
 	}
 
+	@Override
 	public String getThreadName() {
 		return threadName;
 	}
 
+	@Override
 	public String getLoggerName() {
 		return loggerName;
 	}
 
-	public int getLevel() {
+	@Override
+	public Level getLevel() {
 		return level;
 	}
 
+	@Override
 	public String getMessage() {
 		return message;
 	}
 
-	public Object[] getArgs() {
+	@Override
+	public Object[] getArgumentArray() {
 		return args;
 	}
 
+	@Override
+	public String getFormattedMessage() {
+		if (formattedMessage == null) {
+			formattedMessage = (args != null && args.length > 0
+			  ? MessageFormatter.arrayFormat(message, args).getMessage()
+			  : message);
+		}
+		return formattedMessage;
+	}
+
+	@Override
 	public StackTraceElement[] getCallerData() {
 		return callerData;
 	}
 
-	public Map<String, String> getMdcProps() {
+	@Override
+	public boolean hasCallerData() {
+		return callerData != null && callerData.length > 0;
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		return mdcProps;
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
 		return mdcProps;
 	}
 
-	public Throwable getCause() {
-		return cause;
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		if (null == throwableProxy && null != throwableMessages) {
+			throwableProxy = throwableNames.throwableOf(throwableId)
+			                               .withMessages(Arrays.asList(throwableMessages).iterator());
+		}
+		return throwableProxy;
+	}
+
+	@Override
+	public Marker getMarker() {
+		return null;
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return loggerContextVO;
 	}
 
-	static void write(ExcerptAppender ex, LoggingEvent evt, boolean includeCallerData, int vers) {
+	/**
+	 * @param loggerContextVO the context of the logger reading the journal, used by layouts printing the context
+	 */
+	void setLoggerContextVO(LoggerContextVO loggerContextVO) {
+		this.loggerContextVO = loggerContextVO;
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		// the dictionary does not travel with the record
+		getThrowableProxy();
+		out.defaultWriteObject();
+	}
+
+	static void write(ExcerptAppender ex, ILoggingEvent evt, boolean includeCallerData, int vers) {
+		if (vers != VERSION_1) {
+			throw new IllegalArgumentException("Version " + vers + " needs a name dictionary");
+		}
 		ex.startExcerpt(32 * 1024);
 		ex.writeInt(vers);
 
-		if (vers == 1) {
-			ex.writeLong(evt.getTimeStamp());
-			ex.writeInt(evt.getLevel().toInt());
+		ex.writeLong(evt.getTimeStamp());
+		ex.writeInt(evt.getLevel().toInt());
 
-			Object[] args = evt.getArgumentArray();
-			int argLen = (null != args ? args.length : 0);
-			ex.writeInt(argLen);
+		Object[] args = evt.getArgumentArray();
+		int argLen = (null != args ? args.length : 0);
+		ex.writeInt(argLen);
 
-			Map<String, String> mdcProps = evt.getMDCPropertyMap();
-			int propsLen = (null != mdcProps ? mdcProps.size() : 0);
-			ex.writeInt(propsLen);
+		Map<String, String> mdcProps = evt.getMDCPropertyMap();
+		int propsLen = (null != mdcProps ? mdcProps.size() : 0);
+		ex.writeInt(propsLen);
 
-			StackTraceElement[] callerData = null;
-			if (includeCallerData) {
-				callerData = evt.getCallerData();
-			}
-			int callerDataLen = (null != callerData ? callerData.length : 0);
-			ex.writeInt(callerDataLen);
+		StackTraceElement[] callerData = null;
+		if (includeCallerData) {
+			callerData = evt.getCallerData();
+		}
+		int callerDataLen = (null != callerData ? callerData.length : 0);
+		ex.writeInt(callerDataLen);
 
-			ex.writeUTF(evt.getThreadName());
-			ex.writeUTF(evt.getLoggerName());
-			ex.writeUTF(evt.getMessage());
+		ex.writeUTF(evt.getThreadName());
+		ex.writeUTF(evt.getLoggerName());
+		ex.writeUTF(evt.getMessage());
 
-			for (int i = 0; i < argLen; i++) {
-				ex.writeUTF(args[i].toString());
-			}
+		for (int i = 0; i < argLen; i++) {
+			ex.writeUTF(String.valueOf(args[i]));
+		}
 
-			for (Map.Entry<String, String> entry : evt.getMDCPropertyMap().entrySet()) {
+		if (propsLen > 0) {
+			for (Map.Entry<String, String> entry : mdcProps.entrySet()) {
 				ex.writeUTF(entry.getKey());
 				ex.writeUTF(entry.getValue());
 			}
+		}
+
+		for (int i = 0; i < callerDataLen; i++) {
+			ex.writeObject(callerData[i]);
+		}
+
+		// only a live ThrowableProxy still has the Throwable to serialize
+		IThrowableProxy tp = evt.getThrowableProxy();
+		boolean hasCause = tp instanceof ThrowableProxy;
+		ex.writeBoolean(hasCause);
+		if (hasCause) {
+			ex.writeObject(((ThrowableProxy) tp).getThrowable());
+		}
+
+		ex.finish();
+	}
+
+	/**
+	 * Write an event with the version 2 layout. The excerpt is sized from an upper bound of the encoded event;
+	 * an event whose bound exceeds {@link #MAX_EXCERPT_SIZE} is encoded in memory first and split over several
+	 * excerpts, which {@link #read(ExcerptTailer, NameDictionary)} reassembles.
+	 *
+	 * @param ex the journal appender
+	 * @param evt the event to write
+	 * @param includeCallerData whether to write the caller data
+	 * @param names the dictionary of the journal
+	 *
+	 * @return the number of bytes written to the journal
+	 *
+	 * @throws IOException if a new name cannot be added to the dictionary
+	 */
+	static long write(ExcerptAppender ex, ILoggingEvent evt, boolean includeCallerData, NameDictionary names)
+	  throws IOException {
+		return write(ex, evt, includeCallerData, true, names);
+	}
+
+	/**
+	 * Write an event with the version 2 layout, see {@link #write(ExcerptAppender, ILoggingEvent, boolean,
+	 * NameDictionary)}.
+	 *
+	 * @param ex the journal appender
+	 * @param evt the event to write
+	 * @param includeCallerData whether to write the caller data
+	 * @param compactMdc whether to refer to the set of MDC keys by its dictionary id rather than write each key
+	 * @param names the dictionary of the journal
+	 *
+	 * @return the number of bytes written to the journal
+	 *
+	 * @throws IOException if a new name cannot be added to the dictionary
+	 */
+	static long write(ExcerptAppender ex,
+	                  ILoggingEvent evt,
+	                  boolean includeCallerData,
+	                  boolean compactMdc,
+	                  NameDictionary names) throws IOException {
+		// stringified once so that the bound holds for what is encoded
+		Object[] args = evt.getArgumentArray();
+		String[] argStrings = null;
+		if (null != args) {
+			argStrings = new String[args.length];
+			for (int i = 0; i < args.length; i++) {
+				argStrings[i] = (null != args[i] ? args[i].toString() : null);
+			}
+		}
+		StackTraceElement[] callerData = (includeCallerData ? evt.getCallerData() : null);
+
+		long size = estimateSize(evt, argStrings, callerData);
+		if (size <= MAX_EXCERPT_SIZE) {
+			ex.startExcerpt(size);
+			encode(ex, evt, argStrings, callerData, compactMdc, names);
+			long written = ex.position();
+			ex.finish();
+			return written;
+		}
 
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE - 8));
+		Bytes bytes = ByteBufferBytes.wrap(buffer);
+		encode(bytes, evt, argStrings, callerData, compactMdc, names);
+		int total = (int) bytes.position();
+		byte[] encoded = buffer.array();
+
+		int chunkSize = MAX_EXCERPT_SIZE - 2 * MAX_STOP_BIT - 1;
+		long written = 0;
+		for (int offset = 0; offset < total; offset += chunkSize) {
+			int len = Math.min(chunkSize, total - offset);
+			ex.startExcerpt(len + 2 * MAX_STOP_BIT + 1);
+			if (offset == 0) {
+				ex.writeByte(CHUNK_HEAD);
+				ex.writeStopBit(total);
+			}
+			else {
+				ex.writeByte(CHUNK_NEXT);
+			}
+			ex.writeStopBit(len);
+			ex.write(encoded, offset, len);
+			written += ex.position();
+			ex.finish();
+		}
+		return written;
+	}
+
+	/**
+	 * @return an upper bound of the size of the version 2 encoding of an event
+	 */
+	static long estimateSize(ILoggingEvent evt, String[] args, StackTraceElement[] callerData) {
+		// an MDC written key by key adds a count
+		long size = 2 + 7 * MAX_STOP_BIT + utfBound(evt.getMessage());
+		if (null != args) {
+			for (String arg : args) {
+				size += utfBound(arg);
+			}
+		}
+		Map<String, String> mdcProps = evt.getMDCPropertyMap();
+		if (null != mdcProps) {
+			for (Map.Entry<String, String> entry : mdcProps.entrySet()) {
+				size += utfBound(entry.getKey()) + utfBound(entry.getValue());
+			}
+		}
+		if (null != callerData) {
+			size += callerData.length * FRAME_BOUND;
+		}
+		IThrowableProxy tp = evt.getThrowableProxy();
+		if (null != tp) {
+			size += throwableBound(tp);
+		}
+		return size;
+	}
+
+	private static void encode(Bytes ex,
+	                           ILoggingEvent evt,
+	                           String[] args,
+	                           StackTraceElement[] callerData,
+	                           boolean compactMdc,
+	                           NameDictionary names) throws IOException {
+		ex.writeByte(VERSION_2);
+
+		ex.writeStopBit(evt.getTimeStamp());
+		ex.writeByte(evt.getLevel().toInt() / 1000);
+		ex.writeStopBit(names.idOf(evt.getThreadName()));
+		ex.writeStopBit(names.idOf(evt.getLoggerName()));
+		ex.writeUTFΔ(evt.getMessage());
+
+		int argLen = (null != args ? args.length : 0);
+		ex.writeStopBit(argLen);
+		for (int i = 0; i < argLen; i++) {
+			ex.writeUTFΔ(args[i]);
+		}
+
+		Map<String, String> mdcProps = evt.getMDCPropertyMap();
+		if (null == mdcProps || mdcProps.isEmpty()) {
+			ex.writeStopBit(0);
+		}
+		else {
+			writeMdc(ex, mdcProps, compactMdc, names);
+		}
+
+		int callerDataLen = (null != callerData ? callerData.length : 0);
+		int callSiteId = (callerDataLen > 0 ? names.callSiteId(callerData) : -1);
+		if (callSiteId >= 0) {
+			// a negative length stands for the id of a call site
+			ex.writeStopBit(-1L - callSiteId);
+		}
+		else {
+			ex.writeStopBit(callerDataLen);
 			for (int i = 0; i < callerDataLen; i++) {
-				ex.writeObject(callerData[i]);
+				writeFrame(ex, callerData[i], names);
+			}
+		}
+
+		IThrowableProxy tp = evt.getThrowableProxy();
+		if (null == tp) {
+			ex.writeByte(NO_THROWABLE);
+		}
+		else {
+			int throwableId = names.throwableId(tp);
+			if (throwableId < 0) {
+				ex.writeByte(INLINE_THROWABLE);
+				writeThrowable(ex, tp, names, true);
 			}
+			else {
+				ex.writeByte(SHARED_THROWABLE);
+				ex.writeStopBit(throwableId);
+				ex.writeStopBit(countThrowables(tp));
+				writeMessages(ex, tp);
+			}
+		}
+	}
+
+	/**
+	 * Encode the structure of a throwable, without its messages, as stored in the {@link NameDictionary}.
+	 *
+	 * @param tp the throwable of an event
+	 * @param names the dictionary the names of its classes and frames are added to
+	 *
+	 * @return the encoded structure, one char per byte
+	 *
+	 * @throws IOException if the dictionary cannot be appended to
+	 */
+	static String encodeThrowable(IThrowableProxy tp, NameDictionary names) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(throwableBound(tp), Integer.MAX_VALUE - 8));
+		Bytes bytes = ByteBufferBytes.wrap(buffer);
+		writeThrowable(bytes, tp, names, false);
+		return new String(buffer.array(), 0, (int) bytes.position(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param encoded a structure encoded by {@link #encodeThrowable}
+	 * @param names the dictionary it was encoded with
+	 *
+	 * @return the throwable, with null messages
+	 */
+	static ThrowableRecord decodeThrowable(String encoded, NameDictionary names) {
+		byte[] bytes = encoded.getBytes(StandardCharsets.ISO_8859_1);
+		return readThrowable(ByteBufferBytes.wrap(ByteBuffer.wrap(bytes)), names, null, false);
+	}
+
+	/**
+	 * Check the timestamp and level of the record under a tailer without decoding it. The tailer is rewound to the
+	 * start of the excerpt either way.
+	 *
+	 * @param ex a tailer positioned on an excerpt
+	 * @param from the oldest timestamp accepted
+	 * @param to the newest timestamp accepted
+	 * @param level the lowest level accepted
+	 *
+	 * @return false if the record is outside the range or below the level, or if the excerpt continues a split
+	 * record
+	 */
+	static boolean matches(ExcerptTailer ex, long from, long to, Level level) {
+		int marker = ex.readUnsignedByte();
+		if (marker == CHUNK_NEXT) {
+			ex.position(0);
+			return false;
+		}
+		if (marker == CHUNK_HEAD) {
+			ex.readStopBit();
+			ex.readStopBit();
+			marker = ex.readUnsignedByte();
+		}
 
-			boolean hasCause = null != evt.getThrowableProxy();
-			ex.writeBoolean(hasCause);
-			if (hasCause) {
-				ex.writeObject((Throwable) evt.getThrowableProxy());
+		long timestamp;
+		int levelInt;
+		if (marker == VERSION_2) {
+			timestamp = ex.readStopBit();
+			levelInt = ex.readByte() * 1000;
+		}
+		else {
+			ex.position(0);
+			if (ex.readInt() != VERSION_1) {
+				// let read() report it
+				ex.position(0);
+				return true;
 			}
+			timestamp = ex.readLong();
+			levelInt = ex.readInt();
 		}
+		ex.position(0);
+		return timestamp >= from && timestamp <= to && levelInt >= level.toInt();
+	}
 
-		ex.finish();
+	/**
+	 * Check the formatted message of the record under a tailer against a regex, only decoding its message and
+	 * arguments. A record without arguments is first searched for the literal in its raw message bytes, which
+	 * rejects most records without creating a single string. The tailer is rewound either way.
+	 *
+	 * @param ex a tailer positioned on a record
+	 * @param literal ASCII bytes contained by every match, or null
+	 * @param regex the regex the formatted message must match
+	 *
+	 * @return false if the message does not match, true if it does or if the record is not a single-excerpt
+	 * version 2 record
+	 */
+	static boolean messageMayMatch(ExcerptTailer ex, byte[] literal, Pattern regex) {
+		if (ex.readUnsignedByte() != VERSION_2) {
+			ex.position(0);
+			return true;
+		}
+		ex.readStopBit();
+		ex.readByte();
+		ex.readStopBit();
+		ex.readStopBit();
+
+		long messageStart = ex.position();
+		long messageLen = ex.readStopBit();
+		if (messageLen < 0) {
+			ex.position(0);
+			return true;
+		}
+		long bytesStart = ex.position();
+		ex.position(bytesStart + messageLen);
+		int argLen = (int) ex.readStopBit();
+
+		boolean matches;
+		if (argLen == 0 && null != literal) {
+			// ASCII bytes never occur inside the encoding of other characters
+			matches = contains(ex, bytesStart, bytesStart + messageLen, literal)
+			  && regex.matcher(readMessage(ex, messageStart, 0)).matches();
+		}
+		else {
+			matches = regex.matcher(readMessage(ex, messageStart, argLen)).matches();
+		}
+		ex.position(0);
+		return matches;
+	}
+
+	private static String readMessage(Bytes ex, long messageStart, int argLen) {
+		ex.position(messageStart);
+		String message = ex.readUTFΔ();
+		if (argLen == 0) {
+			return message;
+		}
+		ex.readStopBit();
+		Object[] args = new Object[argLen];
+		for (int i = 0; i < argLen; i++) {
+			args[i] = ex.readUTFΔ();
+		}
+		return MessageFormatter.arrayFormat(message, args).getMessage();
+	}
+
+	private static boolean contains(Bytes ex, long start, long end, byte[] literal) {
+		byte first = literal[0];
+		for (long i = start, last = end - literal.length; i <= last; i++) {
+			if (ex.readByte(i) != first) {
+				continue;
+			}
+			int j = 1;
+			while (j < literal.length && ex.readByte(i + j) == literal[j]) {
+				j++;
+			}
+			if (j == literal.length) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	@SuppressWarnings("unchecked")
 	static LoggingEventRecord read(ExcerptTailer ex) {
-		int vers = ex.readInt();
-		if (vers == 1) {
+		return read(ex, null);
+	}
+
+	/**
+	 * Read a record of any version.
+	 *
+	 * @param ex a tailer positioned on a record, left on its last excerpt if the record was split
+	 * @param names the dictionary of the journal, needed by version 2 records
+	 *
+	 * @return the decoded record, or null if the tailer is positioned in the middle of a split record
+	 */
+	static LoggingEventRecord read(ExcerptTailer ex, NameDictionary names) {
+		return read(ex, names, null);
+	}
+
+	/**
+	 * Read a record of any version, waiting for the rest of a split record to be written if
+	 * needed.
+	 *
+	 * @param ex a tailer positioned on a record, left on its last excerpt if the record was split
+	 * @param names the dictionary of the journal, needed by version 2 records
+	 * @param awaitChunk called while the next excerpt of a split record is not written
+	 * yet, or null to fail right away
+	 *
+	 * @return the decoded record, or null if the tailer is positioned in the middle of a split record
+	 */
+	static LoggingEventRecord read(ExcerptTailer ex, NameDictionary names, Runnable awaitChunk) {
+		int marker = ex.readUnsignedByte();
+		if (marker == CHUNK_NEXT) {
+			return null;
+		}
+		if (marker != CHUNK_HEAD) {
+			ex.position(0);
+			return decode(ex, names);
+		}
+
+		byte[] encoded = new byte[(int) ex.readStopBit()];
+		int offset = 0;
+		for (; ; ) {
+			int len = (int) ex.readStopBit();
+			ex.readFully(encoded, offset, len);
+			offset += len;
+			if (offset >= encoded.length) {
+				break;
+			}
+			ex.finish();
+			boolean next;
+			while (!(next = ex.nextIndex()) && null != awaitChunk) {
+				awaitChunk.run();
+			}
+			if (!next || ex.readUnsignedByte() != CHUNK_NEXT) {
+				throw new IllegalStateException("Truncated record at index " + ex.index());
+			}
+		}
+		return decode(ByteBufferBytes.wrap(ByteBuffer.wrap(encoded)), names);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static LoggingEventRecord decode(Bytes ex, NameDictionary names) {
+		int vers = ex.readUnsignedByte();
+		if (vers != VERSION_2) {
+			// version 1 records start with a whole int
+			ex.position(0);
+			vers = ex.readInt();
+		}
+
+		if (vers == VERSION_2) {
+			if (null == names) {
+				throw new IllegalStateException("Version 2 records need the journal name dictionary");
+			}
+			LoggingEventRecord rec = new LoggingEventRecord();
+
+			rec.timestamp = ex.readStopBit();
+			rec.level = Level.toLevel(ex.readByte() * 1000);
+			rec.threadName = names.nameOf((int) ex.readStopBit());
+			rec.loggerName = names.nameOf((int) ex.readStopBit());
+			rec.message = ex.readUTFΔ();
+
+			int argLen = (int) ex.readStopBit();
+			String[] args = new String[argLen];
+			for (int i = 0; i < argLen; i++) {
+				args[i] = ex.readUTFΔ();
+			}
+			rec.args = args;
+
+			long propsLen = ex.readStopBit();
+			if (propsLen < 0) {
+				rec.mdcProps = readMdc(ex, propsLen, names);
+			}
+			else {
+				Map<String, String> mdcProps = (propsLen > 0
+				  ? new HashMap<String, String>((int) propsLen * 2)
+				  : Collections.<String, String>emptyMap());
+				for (int i = 0; i < propsLen; i++) {
+					String key = ex.readUTFΔ();
+					String val = ex.readUTFΔ();
+					mdcProps.put(key, val);
+				}
+				rec.mdcProps = mdcProps;
+			}
+
+			int callerDataLen = (int) ex.readStopBit();
+			if (callerDataLen < 0) {
+				rec.callerData = names.callSiteOf(-1 - callerDataLen);
+			}
+			else {
+				StackTraceElement[] callerData = (callerDataLen > 0 ? new StackTraceElement[callerDataLen] : NO_FRAMES);
+				for (int i = 0; i < callerDataLen; i++) {
+					callerData[i] = readFrame(ex, names);
+				}
+				rec.callerData = callerData;
+			}
+
+			int throwable = ex.readUnsignedByte();
+			if (throwable == INLINE_THROWABLE) {
+				rec.throwableProxy = readThrowable(ex, names, null, true);
+			}
+			else if (throwable == SHARED_THROWABLE) {
+				rec.throwableId = (int) ex.readStopBit();
+				String[] messages = new String[(int) ex.readStopBit()];
+				for (int i = 0; i < messages.length; i++) {
+					messages[i] = ex.readUTFΔ();
+				}
+				// loads the structure and the names before it, so that it can be resolved once the reader is closed
+				names.nameOf(rec.throwableId);
+				rec.throwableNames = names;
+				rec.throwableMessages = messages;
+			}
+
+			return rec;
+		}
+		if (vers == VERSION_1) {
 			LoggingEventRecord rec = new LoggingEventRecord();
 
 			rec.timestamp = ex.readLong();
-			rec.level = ex.readInt();
+			rec.level = Level.toLevel(ex.readInt());
 			int argLen = ex.readInt();
 			int propsLen = ex.readInt();
 			int callerDataLen = ex.readInt();
@@ -171,7 +744,7 @@ class LoggingEventRecord implements Serializable {
 			rec.callerData = callerData;
 
 			if (ex.readBoolean()) {
-				rec.cause = ex.readObject(Throwable.class);
+				rec.throwableProxy = new ThrowableProxy(ex.readObject(Throwable.class));
 			}
 
 			return rec;
@@ -179,4 +752,180 @@ class LoggingEventRecord implements Serializable {
 		throw new IllegalStateException("Version " + vers + " not supported");
 	}
 
+	private static long utfBound(String s) {
+		return MAX_STOP_BIT + (null != s ? 3L * s.length() : 0L);
+	}
+
+	private static long throwableBound(IThrowableProxy tp) {
+		long size = 3 * MAX_STOP_BIT + 1 + utfBound(tp.getMessage())
+		  + (long) tp.getStackTraceElementProxyArray().length * FRAME_BOUND;
+		if (null != tp.getCause()) {
+			size += throwableBound(tp.getCause());
+		}
+		IThrowableProxy[] suppressed = tp.getSuppressed();
+		if (null != suppressed) {
+			for (IThrowableProxy s : suppressed) {
+				size += throwableBound(s);
+			}
+		}
+		return size + MAX_STOP_BIT;
+	}
+
+	/**
+	 * Write a non-empty MDC as a negative marker, then its values. A marker of -1 is followed by the number of
+	 * entries and each entry as the dictionary id of its key, shifted left by one, then its value. Other markers hold
+	 * the dictionary id of the MDC's set of keys, plus two, and are followed by the value of each of these keys in the
+	 * order of the set.
+	 */
+	private static void writeMdc(Bytes ex, Map<String, String> mdc, boolean compact, NameDictionary names)
+	  throws IOException {
+		NameDictionary.MdcKeys keys = (compact ? names.mdcKeysOf(mdc) : null);
+		if (null == keys) {
+			ex.writeStopBit(-1L);
+			ex.writeStopBit(mdc.size());
+			for (Map.Entry<String, String> entry : mdc.entrySet()) {
+				ex.writeStopBit((long) names.idOf(entry.getKey()) << 1);
+				ex.writeUTFΔ(entry.getValue());
+			}
+			return;
+		}
+		ex.writeStopBit(-2L - keys.id);
+		for (String key : keys.keys) {
+			ex.writeUTFΔ(mdc.get(key));
+		}
+	}
+
+	private static Map<String, String> readMdc(Bytes ex, long marker, NameDictionary names) {
+		if (marker < -1) {
+			String[] keys = names.mdcKeysOf((int) (-2 - marker));
+			Map<String, String> mdc = new HashMap<>(keys.length * 2);
+			for (String key : keys) {
+				mdc.put(key, ex.readUTFΔ());
+			}
+			return mdc;
+		}
+		int count = (int) ex.readStopBit();
+		Map<String, String> mdc = new HashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			String key = names.nameOf((int) (ex.readStopBit() >>> 1));
+			mdc.put(key, ex.readUTFΔ());
+		}
+		return mdc;
+	}
+
+	private static void writeFrame(Bytes ex, StackTraceElement frame, NameDictionary names)
+	  throws IOException {
+		String fileName = frame.getFileName();
+		ex.writeStopBit(names.idOf(frame.getClassName()));
+		ex.writeStopBit(names.idOf(frame.getMethodName()));
+		// 0 stands for an unknown file
+		ex.writeStopBit(null != fileName ? names.idOf(fileName) + 1 : 0);
+		ex.writeStopBit(frame.getLineNumber());
+	}
+
+	private static StackTraceElement readFrame(Bytes ex, NameDictionary names) {
+		String className = names.nameOf((int) ex.readStopBit());
+		String methodName = names.nameOf((int) ex.readStopBit());
+		int fileId = (int) ex.readStopBit();
+		String fileName = (fileId > 0 ? names.nameOf(fileId - 1) : null);
+		int lineNumber = (int) ex.readStopBit();
+		return new StackTraceElement(className, methodName, fileName, lineNumber);
+	}
+
+	private static int countThrowables(IThrowableProxy tp) {
+		int count = 1;
+		if (null != tp.getCause()) {
+			count += countThrowables(tp.getCause());
+		}
+		IThrowableProxy[] suppressed = tp.getSuppressed();
+		if (null != suppressed) {
+			for (IThrowableProxy s : suppressed) {
+				count += countThrowables(s);
+			}
+		}
+		return count;
+	}
+
+	// in the order of writeThrowable
+	private static void writeMessages(Bytes ex, IThrowableProxy tp) {
+		ex.writeUTFΔ(tp.getMessage());
+		if (null != tp.getCause()) {
+			writeMessages(ex, tp.getCause());
+		}
+		IThrowableProxy[] suppressed = tp.getSuppressed();
+		if (null != suppressed) {
+			for (IThrowableProxy s : suppressed) {
+				writeMessages(ex, s);
+			}
+		}
+	}
+
+	private static void writeThrowable(Bytes ex, IThrowableProxy tp, NameDictionary names, boolean withMessages)
+	  throws IOException {
+		StackTraceElementProxy[] frames = tp.getStackTraceElementProxyArray();
+		int commonFrames = tp.getCommonFrames();
+		int ownFrames = frames.length - commonFrames;
+
+		ex.writeStopBit(names.idOf(tp.getClassName()));
+		if (withMessages) {
+			ex.writeUTFΔ(tp.getMessage());
+		}
+		ex.writeStopBit(ownFrames);
+		ex.writeStopBit(commonFrames);
+		for (int i = 0; i < ownFrames; i++) {
+			writeFrame(ex, frames[i].getStackTraceElement(), names);
+		}
+
+		IThrowableProxy cause = tp.getCause();
+		ex.writeBoolean(null != cause);
+		if (null != cause) {
+			writeThrowable(ex, cause, names, withMessages);
+		}
+
+		IThrowableProxy[] suppressed = tp.getSuppressed();
+		int suppressedLen = (null != suppressed ? suppressed.length : 0);
+		ex.writeStopBit(suppressedLen);
+		for (int i = 0; i < suppressedLen; i++) {
+			writeThrowable(ex, suppressed[i], names, withMessages);
+		}
+	}
+
+	private static ThrowableRecord readThrowable(Bytes ex,
+	                                             NameDictionary names,
+	                                             StackTraceElementProxy[] enclosing,
+	                                             boolean withMessages) {
+		String className = names.nameOf((int) ex.readStopBit());
+		String message = (withMessages ? ex.readUTFΔ() : null);
+		int ownFrames = (int) ex.readStopBit();
+		int commonFrames = (int) ex.readStopBit();
+		if (null == enclosing || commonFrames > enclosing.length) {
+			commonFrames = 0;
+		}
+
+		StackTraceElementProxy[] frames = new StackTraceElementProxy[ownFrames + commonFrames];
+		for (int i = 0; i < ownFrames; i++) {
+			frames[i] = new StackTraceElementProxy(readFrame(ex, names));
+		}
+		if (commonFrames > 0) {
+			// the trailing frames shared with the enclosing throwable were not written
+			System.arraycopy(enclosing, enclosing.length - commonFrames, frames, ownFrames, commonFrames);
+		}
+		ThrowableRecord tr = new ThrowableRecord(className, message, frames, commonFrames);
+
+		if (ex.readBoolean()) {
+			tr.cause = readThrowable(ex, names, frames, withMessages);
+		}
+
+		int suppressedLen = (int) ex.readStopBit();
+		if (suppressedLen > 0) {
+			ThrowableRecord[] suppressed = new ThrowableRecord[suppressedLen];
+			for (int i = 0; i < suppressedLen; i++) {
+				suppressed[i] = readThrowable(ex, names, frames, withMessages);
+			}
+			tr.suppressed = suppressed;
+		}
+
+		return tr;
+	}
+
 }
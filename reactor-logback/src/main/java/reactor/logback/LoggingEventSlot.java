@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import org.slf4j.Marker;
+
+/**
+ * A mutable, pre-allocated {@link ILoggingEvent} living in the slot ring of an
+ * {@link AsyncAppender} running in garbage-free mode. The producer claims a slot, copies
+ * the fields a delegate needs out of the live event and publishes the slot. Slots are
+ * reference counted and only become free again once every delegate has seen them, so
+ * delegates only get a reusable view and must not retain it past {@code doAppend}.
+ */
+final class LoggingEventSlot implements ILoggingEvent {
+
+	static final int FREE    = 0;
+	static final int CLAIMED = 1;
+
+	static final AtomicIntegerFieldUpdater<LoggingEventSlot> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(LoggingEventSlot.class, "state");
+
+	static final AtomicIntegerFieldUpdater<LoggingEventSlot> REFS =
+			AtomicIntegerFieldUpdater.newUpdater(LoggingEventSlot.class, "refs");
+
+	volatile int state;
+	volatile int refs;
+
+	private long                timeStamp;
+	private Level               level;
+	private String              threadName;
+	private String              loggerName;
+	private String              message;
+	private Object[]            arguments;
+	private String              formattedMessage;
+	private IThrowableProxy     throwableProxy;
+	private StackTraceElement[] callerData;
+	private Marker              marker;
+	private Map<String, String> mdcPropertyMap;
+	private LoggerContextVO     loggerContextVO;
+
+	/**
+	 * Claim this slot for writing unless it still holds an event being delivered.
+	 *
+	 * @return false if the slot is not free
+	 */
+	boolean tryClaim() {
+		if (state != FREE || !STATE.compareAndSet(this, FREE, CLAIMED)) {
+			return false;
+		}
+		REFS.lazySet(this, 1);
+		return true;
+	}
+
+	/**
+	 * Register additional holders that will each {@link #release()} this slot.
+	 *
+	 * @param holders the number of additional holders
+	 */
+	void retain(int holders) {
+		REFS.addAndGet(this, holders);
+	}
+
+	/**
+	 * Copy the fields of an event already prepared for deferred processing into this
+	 * slot. The argument array is deliberately not retained, delegates get the formatted
+	 * message instead, unless formatting is deferred: the slot then keeps a
+	 * {@link DeferredLoggingEvent#snapshot(Object[]) snapshot} of the arguments and
+	 * formats the message when first asked for, on the consumer thread.
+	 *
+	 * @param evt the live event
+	 * @param includeCallerData whether to copy the caller data
+	 * @param deferFormatting whether to leave formatting to the consumer
+	 */
+	void copyFrom(ILoggingEvent evt, boolean includeCallerData, boolean deferFormatting) {
+		this.timeStamp = evt.getTimeStamp();
+		this.level = evt.getLevel();
+		this.threadName = evt.getThreadName();
+		this.loggerName = evt.getLoggerName();
+		this.message = evt.getMessage();
+		if (deferFormatting) {
+			this.arguments = DeferredLoggingEvent.snapshot(evt.getArgumentArray());
+			this.formattedMessage = null;
+		}
+		else {
+			this.arguments = null;
+			this.formattedMessage = evt.getFormattedMessage();
+		}
+		this.throwableProxy = evt.getThrowableProxy();
+		this.callerData = includeCallerData ? evt.getCallerData() : null;
+		this.marker = evt.getMarker();
+		this.mdcPropertyMap = evt.getMDCPropertyMap();
+		this.loggerContextVO = evt.getLoggerContextVO();
+	}
+
+	/**
+	 * Drop one reference to this slot. The last holder clears the references it carries
+	 * and hands it back to the producers.
+	 */
+	void release() {
+		if (REFS.decrementAndGet(this) != 0) {
+			return;
+		}
+		this.threadName = null;
+		this.loggerName = null;
+		this.message = null;
+		this.arguments = null;
+		this.formattedMessage = null;
+		this.throwableProxy = null;
+		this.callerData = null;
+		this.marker = null;
+		this.mdcPropertyMap = null;
+		this.loggerContextVO = null;
+		STATE.lazySet(this, FREE);
+	}
+
+	@Override
+	public String getThreadName() {
+		return threadName;
+	}
+
+	@Override
+	public Level getLevel() {
+		return level;
+	}
+
+	@Override
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public Object[] getArgumentArray() {
+		return arguments;
+	}
+
+	@Override
+	public String getFormattedMessage() {
+		String formatted = formattedMessage;
+		if (formatted == null && message != null) {
+			// deferred, racy but idempotent when several lanes format at once
+			formatted = DeferredLoggingEvent.format(message, arguments);
+			formattedMessage = formatted;
+		}
+		return formatted;
+	}
+
+	@Override
+	public String getLoggerName() {
+		return loggerName;
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return loggerContextVO;
+	}
+
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		return throwableProxy;
+	}
+
+	@Override
+	public StackTraceElement[] getCallerData() {
+		return callerData;
+	}
+
+	@Override
+	public boolean hasCallerData() {
+		return callerData != null;
+	}
+
+	@Override
+	public Marker getMarker() {
+		return marker;
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		return mdcPropertyMap;
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
+		return mdcPropertyMap;
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+	}
+
+	@Override
+	public String toString() {
+		return "[" + level + "] " + getFormattedMessage();
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+/**
+ * A compressor and decompressor for the LZ4 block format: a greedy single-probe match
+ * finder on a hash of the next four bytes, which gives up on incompressible input
+ * quickly, and a decompressor doing nothing but copies. Logs being mostly the same
+ * logger names, message templates and stack frames over and over, this is enough for a
+ * large ratio at a small fraction of the cost of a deflater.
+ */
+final class Lz4 {
+
+	private static final int MIN_MATCH     = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT      = 12;
+	private static final int MAX_DISTANCE  = 0xFFFF;
+	private static final int HASH_LOG      = 14;
+	private static final int SKIP_STRENGTH = 6;
+
+	private Lz4() {
+	}
+
+	/**
+	 * @return the largest size the compression of {@literal length} bytes can take
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compress a block.
+	 *
+	 * @param dst where to write the compressed block, with room for
+	 * {@link #maxCompressedLength(int)} bytes from {@literal dstOff}
+	 *
+	 * @return the length of the compressed block
+	 */
+	static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		int srcEnd = srcOff + srcLen;
+		int anchor = srcOff;
+		int d = dstOff;
+		if (srcLen > MF_LIMIT) {
+			int matchLimit = srcEnd - LAST_LITERALS;
+			int mfLimit = srcEnd - MF_LIMIT;
+			// offsets from srcOff, the unset ones pointing at the start which is checked anyway
+			int[] table = new int[1 << HASH_LOG];
+			int s = srcOff + 1;
+			while (s < mfLimit) {
+				int h = hash(readInt(src, s));
+				int ref = srcOff + table[h];
+				table[h] = s - srcOff;
+				if (s - ref > MAX_DISTANCE || readInt(src, ref) != readInt(src, s)) {
+					// moves faster through data without matches
+					s += 1 + ((s - anchor) >>> SKIP_STRENGTH);
+					continue;
+				}
+				while (s > anchor && ref > srcOff && src[s - 1] == src[ref - 1]) {
+					s--;
+					ref--;
+				}
+				int len = MIN_MATCH;
+				while (s + len < matchLimit && src[s + len] == src[ref + len]) {
+					len++;
+				}
+				d = sequence(src, anchor, s - anchor, s - ref, len, dst, d);
+				s += len;
+				anchor = s;
+				if (s < mfLimit) {
+					table[hash(readInt(src, s - 2))] = s - 2 - srcOff;
+				}
+			}
+		}
+		d = sequence(src, anchor, srcEnd - anchor, 0, -1, dst, d);
+		return d - dstOff;
+	}
+
+	/**
+	 * Decompress a block.
+	 *
+	 * @param dstLen the length of the block once decompressed
+	 *
+	 * @throws IllegalStateException if the block is malformed or does not decompress to
+	 * {@literal dstLen} bytes
+	 */
+	static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+		int s = srcOff;
+		int srcEnd = srcOff + srcLen;
+		int d = dstOff;
+		int dstEnd = dstOff + dstLen;
+		try {
+			for (; ; ) {
+				int token = src[s++] & 0xFF;
+				int litLen = token >>> 4;
+				if (litLen == 15) {
+					int b;
+					do {
+						b = src[s++] & 0xFF;
+						litLen += b;
+					}
+					while (b == 255);
+				}
+				if (d + litLen > dstEnd || s + litLen > srcEnd) {
+					throw new IllegalStateException("Malformed LZ4 block: literals overflow");
+				}
+				System.arraycopy(src, s, dst, d, litLen);
+				s += litLen;
+				d += litLen;
+				if (s >= srcEnd) {
+					break;
+				}
+
+				int offset = (src[s++] & 0xFF) | (src[s++] & 0xFF) << 8;
+				int ref = d - offset;
+				if (offset == 0 || ref < dstOff) {
+					throw new IllegalStateException("Malformed LZ4 block: offset out of range");
+				}
+				int matchLen = token & 15;
+				if (matchLen == 15) {
+					int b;
+					do {
+						b = src[s++] & 0xFF;
+						matchLen += b;
+					}
+					while (b == 255);
+				}
+				matchLen += MIN_MATCH;
+				if (d + matchLen > dstEnd) {
+					throw new IllegalStateException("Malformed LZ4 block: match overflow");
+				}
+				if (offset >= matchLen) {
+					System.arraycopy(dst, ref, dst, d, matchLen);
+				}
+				else {
+					// overlapping, repeats the last offset bytes
+					for (int i = 0; i < matchLen; i++) {
+						dst[d + i] = dst[ref + i];
+					}
+				}
+				d += matchLen;
+			}
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IllegalStateException("Malformed LZ4 block: truncated", e);
+		}
+		if (d != dstEnd) {
+			throw new IllegalStateException("Malformed LZ4 block: " + (d - dstOff) + " bytes instead of " + dstLen);
+		}
+	}
+
+	private static int sequence(byte[] src, int literals, int litLen, int offset, int matchLen, byte[] dst, int d) {
+		int tokenAt = d++;
+		int token;
+		if (litLen >= 15) {
+			token = 15 << 4;
+			d = length(litLen - 15, dst, d);
+		}
+		else {
+			token = litLen << 4;
+		}
+		System.arraycopy(src, literals, dst, d, litLen);
+		d += litLen;
+		// the last sequence only has literals
+		if (matchLen >= 0) {
+			dst[d++] = (byte) offset;
+			dst[d++] = (byte) (offset >>> 8);
+			int m = matchLen - MIN_MATCH;
+			if (m >= 15) {
+				token |= 15;
+				d = length(m - 15, dst, d);
+			}
+			else {
+				token |= m;
+			}
+		}
+		dst[tokenAt] = (byte) token;
+		return d;
+	}
+
+	private static int length(int len, byte[] dst, int d) {
+		while (len >= 255) {
+			dst[d++] = (byte) 255;
+			len -= 255;
+		}
+		dst[d++] = (byte) len;
+		return d;
+	}
+
+	private static int hash(int i) {
+		return (i * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import net.openhft.chronicle.Chronicle;
+import net.openhft.chronicle.ChronicleQueueBuilder;
+import net.openhft.chronicle.ExcerptAppender;
+import net.openhft.chronicle.ExcerptTailer;
+
+/**
+ * The per-journal dictionary of logger, thread, stack frame and MDC key names referenced
+ * by v2 {@link LoggingEventRecord}s, which also holds their call sites, sets of MDC keys
+ * and the structure of their throwables.
+ * Names are kept in a synchronous side chronicle next to the journal and identified by
+ * their excerpt index, so a record can be decoded on its own and a name is always on
+ * disk before the first record using it. Writing is only done by the journal's single
+ * writer, lookups by id can be made from several threads.
+ */
+final class NameDictionary {
+
+	static final String SUFFIX = "-names";
+
+	/**
+	 * Distinct sets of MDC keys past which MDC maps are written key by key.
+	 */
+	static final int MAX_MDC_KEY_SETS = 1024;
+
+	/**
+	 * Distinct throwable structures past which throwables are written inline.
+	 */
+	static final int MAX_THROWABLES = 1024;
+
+	private final Chronicle            chronicle;
+	private final ExcerptTailer        tailer;
+	private final Map<String, Integer> ids = new HashMap<>();
+
+	private final Map<StackTraceElement[], Integer> callSiteIds = new IdentityHashMap<>();
+	private final Map<Integer, StackTraceElement[]> callSites   = new ConcurrentHashMap<>();
+
+	// MDC values are not kept, the key sets of a journal are few
+	private final Map<Set<String>, MdcKeys> mdcKeyIds = new HashMap<>();
+	private final Map<Integer, String[]>    mdcKeys   = new ConcurrentHashMap<>();
+
+	private final Map<ThrowableKey, Integer>    throwableIds = new HashMap<>();
+	private final Map<Integer, ThrowableRecord> throwables   = new ConcurrentHashMap<>();
+
+	private          ExcerptAppender appender;
+	private volatile String[]        names = new String[64];
+
+	/**
+	 * @param basePath the base path of the journal, not of the dictionary itself
+	 *
+	 * @throws IOException if the dictionary cannot be opened
+	 */
+	NameDictionary(String basePath) throws IOException {
+		this.chronicle = ChronicleQueueBuilder.indexed(basePath + SUFFIX)
+		                                      .synchronous(true)
+		                                      .build();
+		this.tailer = chronicle.createTailer();
+		load();
+	}
+
+	/**
+	 * @param basePath the base path of the journal, not of the dictionary itself
+	 *
+	 * @return true if the journal has a dictionary, which version 1 journals do not
+	 */
+	static boolean exists(String basePath) {
+		return new File(basePath + SUFFIX + ".index").exists();
+	}
+
+	/**
+	 * Find the id of a name, adding it to the dictionary if needed.
+	 *
+	 * @param name a non-null name
+	 *
+	 * @return the id of the name
+	 *
+	 * @throws IOException if the dictionary cannot be appended to
+	 */
+	int idOf(String name) throws IOException {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		if (appender == null) {
+			appender = chronicle.createAppender();
+		}
+		appender.startExcerpt(name.length() * 3 + 8);
+		appender.writeUTFΔ(name);
+		appender.finish();
+		int newId = (int) appender.lastWrittenIndex();
+		put(newId, name);
+		return newId;
+	}
+
+	/**
+	 * @param id an id read from a record
+	 *
+	 * @return the name with that id
+	 *
+	 * @throws IllegalStateException if the dictionary has no such id
+	 */
+	String nameOf(int id) {
+		String[] names = this.names;
+		String name = (id < names.length ? names[id] : null);
+		if (name == null) {
+			// written since the last lookup
+			synchronized (this) {
+				load();
+			}
+			names = this.names;
+			name = (id < names.length ? names[id] : null);
+		}
+		if (name == null) {
+			throw new IllegalStateException("Unknown name id " + id);
+		}
+		return name;
+	}
+
+	/**
+	 * Find the id of a call site interned by {@link CallSites}, adding it to the
+	 * dictionary if needed.
+	 *
+	 * @param frames the caller data of an event
+	 *
+	 * @return the id of the call site, or -1 if the frames are not an interned call site
+	 *
+	 * @throws IOException if the dictionary cannot be appended to
+	 */
+	int callSiteId(StackTraceElement[] frames) throws IOException {
+		Integer id = callSiteIds.get(frames);
+		if (id != null) {
+			return id;
+		}
+		if (!CallSites.isInterned(frames)) {
+			return -1;
+		}
+		int newId = idOf(CallSites.encode(frames));
+		callSiteIds.put(frames, newId);
+		return newId;
+	}
+
+	/**
+	 * @param id a call site id read from a record
+	 *
+	 * @return the frames of that call site, shared by every record referring to it
+	 */
+	StackTraceElement[] callSiteOf(int id) {
+		StackTraceElement[] frames = callSites.get(id);
+		if (frames == null) {
+			frames = CallSites.decode(nameOf(id));
+			callSites.put(id, frames);
+		}
+		return frames;
+	}
+
+	/**
+	 * Find the set of keys of an MDC map, adding it to the dictionary if needed.
+	 *
+	 * @param mdc the MDC map of the event being written
+	 *
+	 * @return the key set and its id, or null if the dictionary already holds
+	 * {@link #MAX_MDC_KEY_SETS} of them
+	 *
+	 * @throws IOException if the dictionary cannot be appended to
+	 */
+	MdcKeys mdcKeysOf(Map<String, String> mdc) throws IOException {
+		MdcKeys keys = mdcKeyIds.get(mdc.keySet());
+		if (keys != null || mdcKeyIds.size() >= MAX_MDC_KEY_SETS) {
+			return keys;
+		}
+		String[] names = mdc.keySet().toArray(new String[0]);
+		StringBuilder sb = new StringBuilder();
+		for (String name : names) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(idOf(name));
+		}
+		keys = new MdcKeys(idOf(sb.toString()), names);
+		mdcKeyIds.put(new HashSet<>(Arrays.asList(names)), keys);
+		return keys;
+	}
+
+	/**
+	 * @param id an MDC key set id read from a record
+	 *
+	 * @return the keys of that set, in the order their values are written
+	 */
+	String[] mdcKeysOf(int id) {
+		String[] keys = mdcKeys.get(id);
+		if (keys == null) {
+			String[] ids = nameOf(id).split(",");
+			keys = new String[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				keys[i] = nameOf(Integer.parseInt(ids[i]));
+			}
+			mdcKeys.put(id, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Find the id of the structure of a throwable, its class names and frames down its
+	 * causes and suppressed throwables but not its messages, adding it to the dictionary
+	 * if needed.
+	 *
+	 * @param tp the throwable of an event
+	 *
+	 * @return the id of its structure, or -1 if the dictionary already holds
+	 * {@link #MAX_THROWABLES} of them
+	 *
+	 * @throws IOException if the dictionary cannot be appended to
+	 */
+	int throwableId(IThrowableProxy tp) throws IOException {
+		ThrowableKey key = new ThrowableKey(tp);
+		Integer id = throwableIds.get(key);
+		if (id != null) {
+			return id;
+		}
+		if (throwableIds.size() >= MAX_THROWABLES) {
+			return -1;
+		}
+		int newId = idOf(LoggingEventRecord.encodeThrowable(tp, this));
+		// keyed by a copy, not to retain the exception of the event
+		throwableIds.put(new ThrowableKey(throwableOf(newId)), newId);
+		return newId;
+	}
+
+	/**
+	 * @param id a throwable id read from a record
+	 *
+	 * @return the structure of that throwable with null messages, shared by every record
+	 * referring to it
+	 */
+	ThrowableRecord throwableOf(int id) {
+		ThrowableRecord tr = throwables.get(id);
+		if (tr == null) {
+			tr = LoggingEventRecord.decodeThrowable(nameOf(id), this);
+			throwables.put(id, tr);
+		}
+		return tr;
+	}
+
+	/**
+	 * @return the number of names the dictionary holds, as far as it has been loaded
+	 */
+	int size() {
+		return ids.size();
+	}
+
+	void close() throws IOException {
+		chronicle.close();
+	}
+
+	private void load() {
+		while (tailer.nextIndex()) {
+			put((int) tailer.index(), tailer.readUTFΔ());
+			tailer.finish();
+		}
+	}
+
+	private void put(int id, String name) {
+		String[] names = this.names;
+		if (id >= names.length) {
+			names = Arrays.copyOf(names, Math.max(names.length * 2, id + 1));
+		}
+		names[id] = name;
+		this.names = names;
+		ids.put(name, id);
+	}
+
+	/**
+	 * A set of MDC keys stored in the dictionary, records only carrying their values.
+	 */
+	static final class MdcKeys {
+
+		final int      id;
+		final String[] keys;
+
+		MdcKeys(int id, String[] keys) {
+			this.id = id;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * The structure of a throwable as a map key, ignoring its messages.
+	 */
+	static final class ThrowableKey {
+
+		final IThrowableProxy tp;
+		final int             hash;
+
+		ThrowableKey(IThrowableProxy tp) {
+			this.tp = tp;
+			this.hash = hash(tp);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof ThrowableKey
+			  && ((ThrowableKey) o).hash == hash
+			  && same(((ThrowableKey) o).tp, tp);
+		}
+
+		private static int hash(IThrowableProxy tp) {
+			int h = tp.getClassName().hashCode() * 31 + tp.getCommonFrames();
+			for (StackTraceElementProxy frame : tp.getStackTraceElementProxyArray()) {
+				h = h * 31 + frame.getStackTraceElement().hashCode();
+			}
+			if (null != tp.getCause()) {
+				h = h * 31 + hash(tp.getCause());
+			}
+			IThrowableProxy[] suppressed = tp.getSuppressed();
+			if (null != suppressed) {
+				for (IThrowableProxy s : suppressed) {
+					h = h * 31 + hash(s);
+				}
+			}
+			return h;
+		}
+
+		private static boolean same(IThrowableProxy a, IThrowableProxy b) {
+			if (null == a || null == b) {
+				return a == b;
+			}
+			if (!a.getClassName().equals(b.getClassName()) || a.getCommonFrames() != b.getCommonFrames()) {
+				return false;
+			}
+			StackTraceElementProxy[] framesA = a.getStackTraceElementProxyArray();
+			StackTraceElementProxy[] framesB = b.getStackTraceElementProxyArray();
+			if (framesA.length != framesB.length) {
+				return false;
+			}
+			for (int i = 0; i < framesA.length; i++) {
+				if (!framesA[i].getStackTraceElement().equals(framesB[i].getStackTraceElement())) {
+					return false;
+				}
+			}
+			if (!same(a.getCause(), b.getCause())) {
+				return false;
+			}
+			IThrowableProxy[] suppressedA = (null != a.getSuppressed() ? a.getSuppressed() : ThrowableRecord.NO_SUPPRESSED);
+			IThrowableProxy[] suppressedB = (null != b.getSuppressed() ? b.getSuppressed() : ThrowableRecord.NO_SUPPRESSED);
+			if (suppressedA.length != suppressedB.length) {
+				return false;
+			}
+			for (int i = 0; i < suppressedA.length; i++) {
+				if (!same(suppressedA[i], suppressedB[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
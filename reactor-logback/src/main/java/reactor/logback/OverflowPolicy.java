@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+/**
+ * What an {@link AsyncAppender} does with a new event once {@literal backlog} events are
+ * already waiting for the delegate.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Block the logging thread until the consumer frees some room (the historical
+	 * behavior).
+	 */
+	BLOCK,
+
+	/**
+	 * Drop the new event.
+	 */
+	DROP_NEW,
+
+	/**
+	 * Queue the new event and have the consumer discard the oldest pending one instead.
+	 * Once every pending event is already condemned, new events are dropped.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Drop the new event if its level is below the configured {@literal dropThreshold},
+	 * block otherwise.
+	 */
+	DROP_BELOW_LEVEL,
+
+	/**
+	 * Keep one overflowing event out of {@literal sampleRate}, blocking for it, and drop
+	 * the others.
+	 */
+	SAMPLE
+
+}
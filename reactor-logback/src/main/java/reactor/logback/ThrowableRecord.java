@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.Serializable;
+import java.util.Iterator;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * A throwable decoded from a v2 {@link LoggingEventRecord}, carrying what Logback needs to
+ * print it without the original exception class being loadable.
+ */
+final class ThrowableRecord implements IThrowableProxy, Serializable {
+
+	private static final long serialVersionUID = -4466193893423851418L;
+
+	static final IThrowableProxy[] NO_SUPPRESSED = new IThrowableProxy[0];
+
+	final String                   className;
+	final String                   message;
+	final StackTraceElementProxy[] frames;
+	final int                      commonFrames;
+
+	IThrowableProxy   cause;
+	IThrowableProxy[] suppressed = NO_SUPPRESSED;
+
+	ThrowableRecord(String className,
+			String message,
+			StackTraceElementProxy[] frames,
+			int commonFrames) {
+		this.className = className;
+		this.message = message;
+		this.frames = frames;
+		this.commonFrames = commonFrames;
+	}
+
+	@Override
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String getClassName() {
+		return className;
+	}
+
+	@Override
+	public StackTraceElementProxy[] getStackTraceElementProxyArray() {
+		return frames;
+	}
+
+	@Override
+	public int getCommonFrames() {
+		return commonFrames;
+	}
+
+	@Override
+	public IThrowableProxy getCause() {
+		return cause;
+	}
+
+	@Override
+	public IThrowableProxy[] getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * @param messages the messages of this throwable, its cause and suppressed throwables,
+	 * depth first
+	 *
+	 * @return a copy of this throwable with the given messages, sharing its frames
+	 */
+	ThrowableRecord withMessages(Iterator<String> messages) {
+		ThrowableRecord tr = new ThrowableRecord(className, messages.next(), frames, commonFrames);
+		if (null != cause) {
+			tr.cause = ((ThrowableRecord) cause).withMessages(messages);
+		}
+		if (suppressed.length > 0) {
+			IThrowableProxy[] copies = new IThrowableProxy[suppressed.length];
+			for (int i = 0; i < suppressed.length; i++) {
+				copies[i] = ((ThrowableRecord) suppressed[i]).withMessages(messages);
+			}
+			tr.suppressed = copies;
+		}
+		return tr;
+	}
+
+	@Override
+	public String toString() {
+		return message != null ? className + ": " + message : className;
+	}
+}
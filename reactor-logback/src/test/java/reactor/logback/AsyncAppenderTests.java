@@ -17,21 +17,39 @@
 package reactor.logback;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.LongStream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.AppenderBase;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 /**
  * @author Jon Brisbin
@@ -113,6 +131,757 @@ public class AsyncAppenderTests {
 	public void dummy() {
 	}
 
+	@Test
+	public void garbageFreeModeDeliversSlotCopies() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setGarbageFree(true);
+		RecordingAppender delegate = new RecordingAppender(1000);
+
+		Logger logger = startAsyncLogger("garbageFree", appender, delegate);
+		for (int i = 0; i < 1000; i++) {
+			logger.warn("message {}", i);
+		}
+
+		assertThat(delegate.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		appender.stop();
+
+		assertThat(delegate.messages).hasSize(1000)
+		                             .startsWith("message 0", "message 1")
+		                             .endsWith("message 999");
+		assertThat(delegate.threadNames).containsOnly(Thread.currentThread().getName());
+	}
+
+	@Test
+	public void deferredFormattingSnapshotsMutableArgumentsAndMdc() throws Exception {
+		for (boolean garbageFree : new boolean[]{false, true}) {
+			AsyncAppender appender = new AsyncAppender();
+			appender.setBacklog(16);
+			appender.setGarbageFree(garbageFree);
+			appender.setDeferFormatting(true);
+			GatedAppender delegate = new GatedAppender();
+
+			Logger logger = startAsyncLogger("deferred-" + garbageFree, appender, delegate);
+			StringBuilder mutable = new StringBuilder("before");
+			MDC.put("request", "1");
+			logger.warn("message {} {}", 1, mutable);
+			mutable.setLength(0);
+			mutable.append("after");
+			MDC.put("request", "2");
+			logger.warn("message {} {}", 2, mutable);
+			MDC.remove("request");
+
+			delegate.gate.countDown();
+			awaitMessages(delegate, 2);
+			appender.stop();
+
+			assertThat(delegate.messages).containsExactly("message 1 before", "message 2 after");
+			assertThat(delegate.requests).containsExactly("1", "2");
+			assertThat(delegate.threadNames).containsOnly(Thread.currentThread().getName());
+		}
+	}
+
+	@Test
+	public void boundedCallerDataIsOnlyQueued() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setIncludeCallerData(true);
+		appender.setCallerDepth(1);
+		List<StackTraceElement[]> queued = new CopyOnWriteArrayList<>();
+		RecordingAppender delegate = new RecordingAppender(1) {
+			@Override
+			protected void append(ILoggingEvent evt) {
+				queued.add(evt.getCallerData());
+				super.append(evt);
+			}
+		};
+		List<StackTraceElement[]> live = new CopyOnWriteArrayList<>();
+		AppenderBase<ILoggingEvent> sibling = new AppenderBase<ILoggingEvent>() {
+			@Override
+			protected void append(ILoggingEvent evt) {
+				live.add(evt.getCallerData());
+			}
+		};
+
+		Logger logger = startAsyncLogger("callerDepth", appender, delegate);
+		sibling.setContext(logger.getLoggerContext());
+		sibling.start();
+		logger.addAppender(sibling);
+		logger.warn("message 0");
+
+		awaitMessages(delegate, 1);
+		appender.stop();
+
+		assertThat(queued.get(0)).hasSize(1);
+		assertThat(queued.get(0)[0].getMethodName()).isEqualTo("boundedCallerDataIsOnlyQueued");
+		// the event other appenders get still has its full caller data
+		assertThat(live.get(0).length).isGreaterThan(1);
+	}
+
+	@Test
+	public void dropNewPolicyNeverBlocksProducers() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setOverflowPolicy(OverflowPolicy.DROP_NEW);
+		GatedAppender delegate = new GatedAppender();
+
+		Logger logger = startAsyncLogger("dropNew", appender, delegate);
+		for (int i = 0; i < 100; i++) {
+			logger.warn("message {}", i);
+		}
+		long dropped = appender.getDroppedCount();
+		assertThat(dropped).isGreaterThanOrEqualTo(100 - 17);
+
+		delegate.gate.countDown();
+		awaitMessages(delegate, 100 - dropped);
+		appender.stop();
+
+		assertThat(delegate.messages).startsWith("message 0")
+		                             .doesNotContain("message 99");
+	}
+
+	@Test
+	public void dropOldestPolicyKeepsMostRecentEvents() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		GatedAppender delegate = new GatedAppender();
+
+		Logger logger = startAsyncLogger("dropOldest", appender, delegate);
+		for (int i = 0; i < 30; i++) {
+			logger.warn("message {}", i);
+		}
+
+		delegate.gate.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (delegate.messages.size() + appender.getDroppedCount() < 30 &&
+				System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		appender.stop();
+
+		assertThat(appender.getDroppedCount()).isGreaterThan(0);
+		assertThat(delegate.messages).hasSize((int) (30 - appender.getDroppedCount()))
+		                             .endsWith("message 29");
+	}
+
+	@Test
+	public void dropBelowLevelPolicyKeepsWarnings() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setOverflowPolicy(OverflowPolicy.DROP_BELOW_LEVEL);
+		GatedAppender delegate = new GatedAppender();
+
+		Logger logger = startAsyncLogger("dropBelowLevel", appender, delegate);
+		for (int i = 0; i < 100; i++) {
+			logger.info("message {}", i);
+		}
+		threadPool.submit(() -> logger.warn("warning"));
+		Thread.sleep(100);
+
+		delegate.gate.countDown();
+		awaitMessages(delegate, 101 - appender.getDroppedCount());
+		appender.stop();
+
+		assertThat(appender.getDroppedCount()).isGreaterThan(0);
+		assertThat(delegate.messages).endsWith("warning");
+	}
+
+	@Test
+	public void mbeanExposesDepthLatenciesAndCounters() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setOverflowPolicy(OverflowPolicy.DROP_NEW);
+		GatedAppender delegate = new GatedAppender();
+
+		Logger logger = startAsyncLogger("mbean", appender, delegate);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("reactor.logback:type=AsyncAppender,context=\"default\",name=\"mbean\"");
+		assertThat(server.isRegistered(name)).isTrue();
+
+		for (int i = 0; i < 30; i++) {
+			logger.warn("message {}", i);
+		}
+		assertThat(server.getAttribute(name, "QueueDepth")).isEqualTo(16L);
+		assertThat(server.getAttribute(name, "QueueHighWaterMark")).isEqualTo(16L);
+		assertThat(server.getAttribute(name, "DroppedCount")).isEqualTo(14L);
+
+		Thread.sleep(20);
+		delegate.gate.countDown();
+		awaitMessages(delegate, 16);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.getAppendedCount() < 16 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(server.getAttribute(name, "EnqueuedCount")).isEqualTo(16L);
+		assertThat(server.getAttribute(name, "AppendedCount")).isEqualTo(16L);
+		assertThat(server.getAttribute(name, "ErrorCount")).isEqualTo(0L);
+		assertThat(LongStream.of((long[]) server.getAttribute(name, "EnqueueLatencyHistogram")).sum()).isEqualTo(16);
+		assertThat(LongStream.of(appender.getAppendLatencyHistogram()).sum()).isEqualTo(16);
+		// the first event waited for the gate
+		assertThat(appender.getAppendLatency99thPercentileNanos()).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(1));
+
+		server.invoke(name, "resetQueueHighWaterMark", null, null);
+		assertThat(appender.getQueueHighWaterMark()).isEqualTo(0L);
+
+		appender.stop();
+		assertThat(server.isRegistered(name)).isFalse();
+	}
+
+	@Test
+	public void slowDelegateDoesNotHoldBackOtherDelegates() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(128);
+		GatedAppender slow = new GatedAppender();
+		RecordingAppender fast = new RecordingAppender(100);
+		fast.setName("fanOut-fast");
+		appender.addAppender(fast);
+
+		Logger logger = startAsyncLogger("fanOut", appender, slow);
+		fast.setContext(slow.getContext());
+		for (int i = 0; i < 100; i++) {
+			logger.warn("message {}", i);
+		}
+
+		assertThat(fast.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.getDelegateLag("fanOut-fast") > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(appender.getDelegateLag("fanOut-fast")).isZero();
+		assertThat(appender.getDelegateLag("fanOut-delegate")).isGreaterThan(0);
+
+		slow.gate.countDown();
+		awaitMessages(slow, 100);
+		appender.stop();
+
+		assertThat(fast.messages).endsWith("message 99");
+		assertThat(slow.messages).endsWith("message 99");
+	}
+
+	@Test
+	public void fullDelegateLaneDropsForItsDelegateOnly() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setOverflowPolicy(OverflowPolicy.DROP_NEW);
+		GatedAppender slow = new GatedAppender();
+		RecordingAppender fast = new RecordingAppender(0);
+		fast.setName("isolated-fast");
+		appender.addAppender(fast);
+
+		Logger logger = startAsyncLogger("isolated", appender, slow);
+		fast.setContext(slow.getContext());
+		for (int i = 0; i < 100; i++) {
+			logger.warn("message {}", i);
+			Thread.sleep(1);
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.getDelegateLag("isolated-fast") > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(appender.getDelegateDroppedCount("isolated-delegate")).isGreaterThan(0);
+		slow.gate.countDown();
+		appender.stop();
+
+		assertThat(fast.messages.size() + appender.getDroppedCount() +
+				appender.getDelegateDroppedCount("isolated-fast")).isEqualTo(100);
+		assertThat(fast.messages).endsWith("message 99");
+	}
+
+	@Test
+	public void garbageFreeSlotsHeldByASlowLaneDoNotBlockProducers() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(16);
+		appender.setGarbageFree(true);
+		appender.setOverflowPolicy(OverflowPolicy.DROP_NEW);
+		GatedAppender slow = new GatedAppender();
+		RecordingAppender fast = new RecordingAppender(0);
+		fast.setName("slots-fast");
+		appender.addAppender(fast);
+
+		Logger logger = startAsyncLogger("slots", appender, slow);
+		fast.setContext(slow.getContext());
+		// the slow lane keeps a full ring of slots retained
+		Future<?> producer = threadPool.submit(() -> {
+			for (int i = 0; i < 1000; i++) {
+				logger.warn("message {}", i);
+			}
+		});
+
+		producer.get(5, TimeUnit.SECONDS);
+		slow.gate.countDown();
+		appender.stop();
+
+		assertThat(fast.messages).isNotEmpty();
+		assertThat(fast.messages.size() + appender.getDroppedCount() +
+				appender.getDelegateDroppedCount("slots-fast")).isEqualTo(1000);
+	}
+
+	@Test
+	public void shardsKeepTheOrderOfEachLogger() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(1024);
+		appender.setShards(2);
+		RecordingAppender first = new RecordingAppender(0);
+		RecordingAppender second = new RecordingAppender(0);
+		second.setName("sharded-second");
+		appender.addAppender(second);
+
+		Logger parent = startAsyncLogger("sharded", appender, first);
+		second.setContext(first.getContext());
+		second.start();
+		String[] names = {"a", "b", "c", "d", "e", "f", "g", "h"};
+		for (int i = 0; i < 100; i++) {
+			for (String name : names) {
+				parent.getLoggerContext().getLogger("sharded." + name).warn(name + " {}", i);
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (first.messages.size() + second.messages.size() < 800 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		appender.stop();
+
+		assertThat(first.messages.size() + second.messages.size()).isEqualTo(800);
+		assertThat(first.messages).isNotEmpty();
+		assertThat(second.messages).isNotEmpty();
+		for (String name : names) {
+			List<String> shard = first.messages.contains(name + " 0") ? first.messages : second.messages;
+			List<String> expected = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				expected.add(name + " " + i);
+			}
+			assertThat(shard.stream().filter(m -> m.startsWith(name + " "))).containsExactlyElementsOf(expected);
+		}
+	}
+
+	@Test
+	public void slowTapDropsOnlyItsOwnEvents() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(1024);
+		appender.setJmx(false);
+		RecordingAppender delegate = new RecordingAppender(2000);
+		Logger logger = startAsyncLogger("tap", appender, delegate);
+
+		List<String> fast = new CopyOnWriteArrayList<>();
+		CountDownLatch fastDone = new CountDownLatch(1);
+		appender.tap(evt -> evt.getLevel() == Level.ERROR, 1024)
+		        .subscribe(evt -> fast.add(evt.getFormattedMessage()), null, fastDone::countDown);
+
+		CountDownLatch gate = new CountDownLatch(1);
+		List<String> slow = new CopyOnWriteArrayList<>();
+		CountDownLatch slowDone = new CountDownLatch(1);
+		appender.tap(evt -> evt.getLevel() == Level.ERROR, 16)
+		        .subscribe(evt -> {
+			        try {
+				        gate.await();
+			        }
+			        catch (InterruptedException e) {
+				        Thread.currentThread().interrupt();
+			        }
+			        slow.add(evt.getFormattedMessage());
+		        }, null, slowDone::countDown);
+
+		for (int i = 0; i < 1000; i++) {
+			logger.error("error {}", i);
+			logger.info("info {}", i);
+		}
+
+		// the primary path and the fast tap are not held back by the blocked one
+		assertThat(delegate.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (fast.size() < 1000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(fast).hasSize(1000).startsWith("error 0").endsWith("error 999");
+		assertThat(appender.getTapDroppedCount()).isGreaterThan(0);
+
+		gate.countDown();
+		appender.stop();
+		assertThat(fastDone.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(slowDone.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(slow.size() + appender.getTapDroppedCount()).isEqualTo(1000);
+	}
+
+	@Test
+	public void everyWaitStrategyDeliversEvents() throws Exception {
+		for (ConsumerWaitStrategy waitStrategy : ConsumerWaitStrategy.values()) {
+			AsyncAppender appender = new AsyncAppender();
+			appender.setBacklog(64);
+			appender.setWaitStrategy(waitStrategy);
+			appender.setWaitSpinMicros(10);
+			appender.setWaitYieldMicros(10);
+			RecordingAppender delegate = new RecordingAppender(100);
+
+			Logger logger = startAsyncLogger("wait-" + waitStrategy, appender, delegate);
+			for (int i = 0; i < 100; i++) {
+				logger.warn("message {}", i);
+			}
+
+			assertThat(delegate.latch.await(5, TimeUnit.SECONDS)).as(waitStrategy.name()).isTrue();
+			appender.stop();
+			assertThat(delegate.messages).endsWith("message 99");
+		}
+	}
+
+	@Test
+	public void batchDelegateReceivesDrainedBursts() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(1024);
+		appender.setMaxBatchSize(100);
+		BatchRecordingAppender delegate = new BatchRecordingAppender(1000);
+
+		Logger logger = startAsyncLogger("batch", appender, delegate);
+		for (int i = 0; i < 1000; i++) {
+			logger.warn("message {}", i);
+		}
+
+		assertThat(delegate.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		appender.stop();
+
+		assertThat(delegate.messages).hasSize(1000)
+		                             .endsWith("message 999");
+		assertThat(delegate.batchSizes).allMatch(size -> size <= 100);
+		assertThat(delegate.batchSizes.size()).isLessThan(1000);
+	}
+
+	@Test
+	public void batchLingerGroupsSparseEvents() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(1024);
+		appender.setBatchLinger(200);
+		BatchRecordingAppender delegate = new BatchRecordingAppender(10);
+
+		Logger logger = startAsyncLogger("linger", appender, delegate);
+		for (int i = 0; i < 10; i++) {
+			logger.warn("message {}", i);
+			Thread.sleep(5);
+		}
+
+		assertThat(delegate.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		appender.stop();
+
+		assertThat(delegate.messages).hasSize(10);
+		assertThat(delegate.batchSizes.size()).isLessThan(10);
+	}
+
+	@Test
+	public void stopAbandonsWhatIsLeftPastTheDrainTimeout() throws Exception {
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(1024);
+		appender.setMaxBatchSize(100);
+		appender.setDrainTimeout(200);
+		BatchRecordingAppender delegate = new BatchRecordingAppender(0);
+		// at least half a second for all of them
+		delegate.batchDelay = 50;
+
+		Logger logger = startAsyncLogger("drain", appender, delegate);
+		for (int i = 0; i < 1000; i++) {
+			logger.warn("message {}", i);
+		}
+
+		long start = System.nanoTime();
+		appender.stop();
+		long stopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertThat(stopMillis).isLessThan(1000L);
+		assertThat(appender.getAbandonedCount()).isGreaterThan(0L);
+		assertThat(delegate.messages.size() + appender.getAbandonedCount()).isEqualTo(1000L);
+		assertThat(delegate.messages).startsWith("message 0");
+		assertThat(appender.getContext()
+		                   .getStatusManager()
+		                   .getCopyOfStatusList())
+				.anyMatch(status -> status.getMessage().contains("abandoned " + appender.getAbandonedCount()));
+	}
+
+	@Test
+	public void batchFileAppenderWritesEveryEvent() throws Exception {
+		Path file = Files.createTempFile("batch", ".log");
+		AsyncAppender appender = new AsyncAppender();
+		appender.setBacklog(1024);
+		BatchFileAppender delegate = new BatchFileAppender();
+		delegate.setFile(file.toString());
+		delegate.setAppend(false);
+
+		LoggerContext context = new LoggerContext();
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%msg%n");
+		encoder.start();
+		delegate.setEncoder(encoder);
+
+		Logger logger = startAsyncLogger("batchFile", appender, delegate, context);
+		for (int i = 0; i < 1000; i++) {
+			logger.warn("message {}", i);
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (Files.readAllLines(file).size() < 1000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		appender.stop();
+
+		assertThat(Files.readAllLines(file)).hasSize(1000)
+		                                    .endsWith("message 999");
+		Files.delete(file);
+	}
+
+	static void awaitMessages(RecordingAppender delegate, long expected)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (delegate.messages.size() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(delegate.messages).hasSize((int) expected);
+	}
+
+	@Test
+	public void groupDurabilitySyncsEveryNEvents() throws Exception {
+		DurableAsyncAppender appender = new DurableAsyncAppender();
+		appender.setBasePath(Files.createTempDirectory("group-every").toString());
+		appender.setDurability(Durability.GROUP);
+		appender.setSyncEvery(10);
+		appender.setSyncInterval(60000);
+		RecordingAppender delegate = new RecordingAppender(10);
+
+		Logger logger = startAsyncLogger("groupEvery", appender, delegate);
+		for (int i = 0; i < 9; i++) {
+			logger.warn("message {}", i);
+		}
+		assertThat(appender.getDurabilityLag()).isEqualTo(9);
+
+		logger.warn("message 9");
+		awaitDurabilityLag(appender, 0);
+		assertThat(appender.getDurabilityLag()).isZero();
+		awaitMessages(delegate, 10);
+		appender.stop();
+	}
+
+	@Test
+	public void groupDurabilitySyncsAfterInterval() throws Exception {
+		DurableAsyncAppender appender = new DurableAsyncAppender();
+		appender.setBasePath(Files.createTempDirectory("group-interval").toString());
+		appender.setDurability(Durability.GROUP);
+		appender.setSyncEvery(1000);
+		appender.setSyncInterval(20);
+		RecordingAppender delegate = new RecordingAppender(25);
+
+		Logger logger = startAsyncLogger("groupInterval", appender, delegate);
+		for (int i = 0; i < 25; i++) {
+			logger.warn("message {}", i);
+		}
+		awaitDurabilityLag(appender, 0);
+
+		assertThat(appender.getDurabilityLag()).isZero();
+		awaitMessages(delegate, 25);
+		appender.stop();
+	}
+
+	@Test
+	public void undeliveredJournaledEventsAreReplayedOnStart() throws Exception {
+		String basePath = Files.createTempDirectory("replay").toString();
+		DurableAsyncAppender first = new DurableAsyncAppender();
+		first.setBasePath(basePath);
+		RecordingAppender delivered = new RecordingAppender(10);
+
+		Logger logger = startAsyncLogger("replay", first, delivered);
+		for (int i = 0; i < 10; i++) {
+			logger.warn("message {}", i);
+		}
+		awaitMessages(delivered, 10);
+		// advanced by the consumer as it delivers
+		JournalCheckpoint checkpoint = new JournalCheckpoint(basePath + "/replay");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (checkpoint.get() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(checkpoint.get()).isEqualTo(10);
+		first.stop();
+		awaitStopped(first);
+
+		// as if the JVM had died before the last four events were delivered
+		checkpoint.set(6);
+		checkpoint.close();
+
+		DurableAsyncAppender second = new DurableAsyncAppender();
+		second.setBasePath(basePath);
+		RecordingAppender replayed = new RecordingAppender(5);
+
+		logger = startAsyncLogger("replay", second, replayed);
+		logger.warn("message 10");
+		awaitMessages(replayed, 5);
+		second.stop();
+		awaitStopped(second);
+
+		assertThat(replayed.messages).containsExactly("message 6", "message 7", "message 8", "message 9",
+		                                             "message 10");
+		checkpoint = new JournalCheckpoint(basePath + "/replay");
+		assertThat(checkpoint.get()).isEqualTo(11);
+		checkpoint.close();
+	}
+
+	@Test
+	public void eventsAbandonedPastTheDrainTimeoutAreReplayedOnStart() throws Exception {
+		String basePath = Files.createTempDirectory("drain-replay").toString();
+		DurableAsyncAppender first = new DurableAsyncAppender();
+		first.setBasePath(basePath);
+		first.setMaxBatchSize(10);
+		first.setDrainTimeout(150);
+		BatchRecordingAppender slow = new BatchRecordingAppender(0);
+		// a second for all of them
+		slow.batchDelay = 50;
+
+		Logger logger = startAsyncLogger("drainReplay", first, slow);
+		for (int i = 0; i < 200; i++) {
+			logger.warn("message {}", i);
+		}
+		first.stop();
+		awaitStopped(first);
+
+		long abandoned = first.getAbandonedCount();
+		assertThat(abandoned).isGreaterThan(0L);
+		assertThat(slow.messages.size() + abandoned).isEqualTo(200L);
+
+		DurableAsyncAppender second = new DurableAsyncAppender();
+		second.setBasePath(basePath);
+		RecordingAppender replayed = new RecordingAppender((int) abandoned);
+
+		startAsyncLogger("drainReplay", second, replayed);
+		assertThat(replayed.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		second.stop();
+		awaitStopped(second);
+
+		assertThat(replayed.messages).hasSize((int) abandoned)
+		                             .startsWith("message " + slow.messages.size())
+		                             .endsWith("message 199");
+	}
+
+	@Test
+	public void eventsAbandonedByASlowLaneAreReplayedOnStart() throws Exception {
+		String basePath = Files.createTempDirectory("lane-replay").toString();
+		DurableAsyncAppender first = new DurableAsyncAppender();
+		first.setBasePath(basePath);
+		first.setDrainTimeout(150);
+		RecordingAppender fast = new RecordingAppender(200);
+		RecordingAppender slow = new RecordingAppender(0) {
+			@Override
+			protected void append(ILoggingEvent evt) {
+				// a second for all of them
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+				super.append(evt);
+			}
+		};
+		fast.setName("laneReplay-fast");
+		first.addAppender(fast);
+
+		Logger logger = startAsyncLogger("laneReplay", first, slow);
+		fast.setContext(slow.getContext());
+		for (int i = 0; i < 200; i++) {
+			logger.warn("message {}", i);
+		}
+		awaitMessages(fast, 200);
+		first.stop();
+		awaitStopped(first);
+
+		long abandoned = first.getAbandonedCount();
+		assertThat(abandoned).isGreaterThan(0L);
+		assertThat(slow.messages.size() + abandoned).isEqualTo(200L);
+
+		DurableAsyncAppender second = new DurableAsyncAppender();
+		second.setBasePath(basePath);
+		RecordingAppender replayed = new RecordingAppender((int) abandoned);
+
+		startAsyncLogger("laneReplay", second, replayed);
+		assertThat(replayed.latch.await(5, TimeUnit.SECONDS)).isTrue();
+		second.stop();
+		awaitStopped(second);
+
+		// from the first event the slow lane did not deliver on
+		assertThat(replayed.messages).hasSize((int) abandoned)
+		                             .startsWith("message " + slow.messages.size())
+		                             .endsWith("message 199");
+	}
+
+	@Test
+	public void retentionKeepsCyclesHoldingUndeliveredEvents() throws Exception {
+		String basePath = Files.createTempDirectory("retention").toString();
+		DurableAsyncAppender appender = new DurableAsyncAppender();
+		appender.setBasePath(basePath);
+		appender.setRollSize(1000);
+		appender.setMaxCycles(2);
+		GatedAppender delegate = new GatedAppender();
+
+		Logger logger = startAsyncLogger("retention", appender, delegate);
+		for (int i = 0; i < 100; i++) {
+			logger.warn("message {}", i);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.getContext()
+		               .getStatusManager()
+		               .getCopyOfStatusList()
+		               .stream()
+		               .noneMatch(status -> status.getMessage().contains("past the retention limits"))
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		String journal = basePath + "/retention";
+		assertThat(JournalCycles.list(journal).length).isGreaterThan(2);
+		assertThat(JournalCycles.list(journal)[0]).isZero();
+
+		delegate.gate.countDown();
+		awaitMessages(delegate, 100);
+		// the next roll lets retention catch up
+		deadline = System.currentTimeMillis() + 5000;
+		for (int i = 100; JournalCycles.list(journal).length > 2 && System.currentTimeMillis() < deadline; i++) {
+			logger.warn("message {}", i);
+			Thread.sleep(1);
+		}
+		appender.stop();
+		awaitStopped(appender);
+
+		assertThat(JournalCycles.list(journal)).hasSize(2);
+	}
+
+	static void awaitStopped(AsyncAppender appender) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.isStarted() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	static void awaitDurabilityLag(DurableAsyncAppender appender, long lag)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (appender.getDurabilityLag() != lag && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	static Logger startAsyncLogger(String name,
+			AsyncAppender appender,
+			Appender<ILoggingEvent> delegate) {
+		return startAsyncLogger(name, appender, delegate, new LoggerContext());
+	}
+
+	static Logger startAsyncLogger(String name,
+			AsyncAppender appender,
+			Appender<ILoggingEvent> delegate,
+			LoggerContext context) {
+		delegate.setContext(context);
+		delegate.setName(name + "-delegate");
+		appender.setContext(context);
+		appender.setName(name);
+		appender.addAppender(delegate);
+		appender.start();
+
+		Logger logger = context.getLogger(name);
+		logger.setAdditive(false);
+		logger.addAppender(appender);
+		return logger;
+	}
+
 	private long benchmarkThread(final Logger logger, int timeout) throws InterruptedException {
 		final CountDownLatch latch = new CountDownLatch(1);
 		final AtomicLong throughput = new AtomicLong(0);
@@ -134,4 +903,73 @@ public class AsyncAppenderTests {
 		return throughput.get();
 	}
 
+	static class RecordingAppender extends AppenderBase<ILoggingEvent> {
+
+		final List<String>   messages    = new CopyOnWriteArrayList<>();
+		final List<String>   threadNames = new CopyOnWriteArrayList<>();
+		final List<String>   requests    = new CopyOnWriteArrayList<>();
+		final CountDownLatch latch;
+
+		RecordingAppender(int expected) {
+			this.latch = new CountDownLatch(expected);
+		}
+
+		@Override
+		protected void append(ILoggingEvent evt) {
+			// messages last, they are what awaitMessages() polls
+			threadNames.add(evt.getThreadName());
+			requests.add(String.valueOf(evt.getMDCPropertyMap().get("request")));
+			messages.add(evt.getFormattedMessage());
+			latch.countDown();
+		}
+	}
+
+	static final class GatedAppender extends RecordingAppender {
+
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		GatedAppender() {
+			super(0);
+		}
+
+		@Override
+		protected void append(ILoggingEvent evt) {
+			try {
+				gate.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			super.append(evt);
+		}
+	}
+
+	static final class BatchRecordingAppender extends RecordingAppender
+			implements BatchAppender<ILoggingEvent> {
+
+		final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+		volatile long batchDelay;
+
+		BatchRecordingAppender(int expected) {
+			super(expected);
+		}
+
+		@Override
+		public void doAppendBatch(List<ILoggingEvent> events) {
+			batchSizes.add(events.size());
+			if (batchDelay > 0) {
+				try {
+					Thread.sleep(batchDelay);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (ILoggingEvent evt : events) {
+				append(evt);
+			}
+		}
+	}
+
 }
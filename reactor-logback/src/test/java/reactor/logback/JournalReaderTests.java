@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import net.openhft.chronicle.Chronicle;
+import net.openhft.chronicle.ChronicleQueueBuilder;
+import net.openhft.chronicle.ExcerptAppender;
+import org.apache.commons.cli.ParseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class JournalReaderTests {
+
+	String               basePath;
+	DurableAsyncAppender settings;
+	Logger               logger;
+	JournalReader        reader;
+
+	@Before
+	public void setup() throws IOException {
+		basePath = Files.createTempDirectory("journal").resolve("journal").toString();
+		// binds slf4j before reactor does, the test configuration starting reactor appenders
+		logger = (Logger) LoggerFactory.getLogger("journal");
+		settings = new DurableAsyncAppender();
+		settings.setContext(logger.getLoggerContext());
+		settings.setDurability(Durability.OS);
+		settings.setIndexBlockSize(10);
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void timeRangeOnlyDecodesTheMatchingBlock() throws IOException {
+		writeIndexedEvents();
+
+		reader = new JournalReader(basePath);
+		List<ILoggingEvent> events = scan(1500, 1590, Level.TRACE);
+
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .containsExactly("event 50", "event 51", "event 52", "event 53", "event 54",
+		                                   "event 55", "event 56", "event 57", "event 58", "event 59");
+		assertThat(reader.decoded.sum()).isEqualTo(10);
+	}
+
+	@Test
+	public void levelOnlyDecodesRecordsAtOrAboveIt() throws IOException {
+		writeIndexedEvents();
+
+		reader = new JournalReader(basePath);
+		List<ILoggingEvent> events = scan(Long.MIN_VALUE, Long.MAX_VALUE, Level.ERROR);
+
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .containsExactly("event 0", "event 25", "event 50", "event 75");
+		assertThat(reader.decoded.sum()).isEqualTo(4);
+	}
+
+	@Test
+	public void recordsNotIndexedYetAreScanned() throws IOException {
+		writeIndexedEvents();
+		// not closed: its last partial block is not in the index
+		JournalWriter writer = newWriter();
+		writeEvents(writer, 100, 105);
+
+		reader = new JournalReader(basePath);
+		List<ILoggingEvent> events = scan(1990, Long.MAX_VALUE, Level.TRACE);
+
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .containsExactly("event 99", "event 100", "event 101", "event 102", "event 103",
+		                                   "event 104");
+		writer.close();
+	}
+
+	@Test
+	public void parallelScanKeepsJournalOrder() throws IOException {
+		writeIndexedEvents();
+
+		reader = new JournalReader(basePath);
+		List<ILoggingEvent> events = new ArrayList<>();
+		reader.parallelScan(new JournalQuery(1100, 1890, Level.TRACE, null), 0, 4, events::add);
+
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .containsExactlyElementsOf(IntStream.range(10, 90)
+		                                                      .mapToObj(i -> "event " + i)
+		                                                      .collect(Collectors.toList()));
+	}
+
+	@Test
+	public void messageLiteralSkipsDecodingRecordsWithoutIt() throws IOException {
+		JournalWriter writer = newWriter();
+		for (int i = 0; i < 100; i++) {
+			LoggingEvent evt = new LoggingEvent(Logger.class.getName(),
+					logger,
+					Level.INFO,
+					i % 20 == 0 ? "request " + i + " timed out" : "request " + i + " done",
+					null,
+					null);
+			writer.write(evt);
+		}
+		writer.close();
+
+		reader = new JournalReader(basePath);
+		List<ILoggingEvent> events = new ArrayList<>();
+		reader.scan(new JournalQuery(Long.MIN_VALUE, Long.MAX_VALUE, Level.TRACE, Pattern.compile(".* timed out")),
+				events::add);
+
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .containsExactly("request 0 timed out", "request 20 timed out", "request 40 timed out",
+		                                   "request 60 timed out", "request 80 timed out");
+		assertThat(reader.decoded.sum()).isEqualTo(5);
+	}
+
+	@Test
+	public void requiredLiteralIsExtractedFromSimpleRegexes() {
+		assertThat(JournalQuery.requiredLiteral(".*connection reset.*")).isEqualTo("connection reset");
+		assertThat(JournalQuery.requiredLiteral("user [0-9]+ logged in")).isEqualTo(" logged in");
+		assertThat(JournalQuery.requiredLiteral("took [0-9]+ms, retrying")).isEqualTo("ms, retrying");
+		assertThat(JournalQuery.requiredLiteral("colou?r: red")).isEqualTo("r: red");
+		assertThat(JournalQuery.requiredLiteral("a\\.b\\.c")).isEqualTo("a.b.c");
+		assertThat(JournalQuery.requiredLiteral("(error|warning) in main")).isNull();
+		assertThat(JournalQuery.requiredLiteral("[a-z]+")).isNull();
+		// the literal text of escapes and nested classes is not worked out
+		assertThat(JournalQuery.requiredLiteral("\\x41bc")).isNull();
+		assertThat(JournalQuery.requiredLiteral("\\u0041bc")).isNull();
+		assertThat(JournalQuery.requiredLiteral("\\0101z")).isNull();
+		assertThat(JournalQuery.requiredLiteral("user \\d+ logged in")).isNull();
+		assertThat(JournalQuery.requiredLiteral("[a[bc]]x")).isNull();
+	}
+
+	@Test
+	public void previousOnlyDecodesTheRecordsReturned() throws IOException {
+		writeIndexedEvents();
+
+		reader = new JournalReader(basePath);
+		List<ILoggingEvent> events = reader.previous(JournalQuery.ALL, Long.MAX_VALUE, 5);
+
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .containsExactly("event 95", "event 96", "event 97", "event 98", "event 99");
+		assertThat(reader.decoded.sum()).isEqualTo(5);
+	}
+
+	@Test
+	public void previousWalksBackFromAPosition() throws IOException {
+		writeIndexedEvents();
+
+		reader = new JournalReader(basePath);
+		JournalQuery errors = new JournalQuery(Long.MIN_VALUE, Long.MAX_VALUE, Level.ERROR, null);
+
+		assertThat(reader.previous(errors, Long.MAX_VALUE, 2)).extracting(ILoggingEvent::getFormattedMessage)
+		                                                      .containsExactly("event 50", "event 75");
+		assertThat(reader.previous(errors, 50, 10)).extracting(ILoggingEvent::getFormattedMessage)
+		                                           .containsExactly("event 0", "event 25");
+		assertThat(reader.decoded.sum()).isEqualTo(4);
+	}
+
+	@Test
+	public void followStreamsTheRecordsWrittenAfterTheSubscription() throws Exception {
+		writeIndexedEvents();
+
+		List<ILoggingEvent> events = new CopyOnWriteArrayList<>();
+		Disposable following = DurableLogUtility.follow(basePath, Level.ERROR, null, FollowWaitStrategy.DEFAULT)
+		                                        .subscribe(events::add);
+		try {
+			JournalWriter writer = newWriter();
+			writeEvents(writer, 100, 151);
+			writer.close();
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (events.size() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+			                  .containsExactly("event 100", "event 125", "event 150");
+		}
+		finally {
+			following.dispose();
+		}
+	}
+
+	@Test
+	public void rolledCyclesAreReadAsOneJournal() throws IOException {
+		settings.setRollSize(1000);
+		writeIndexedEvents();
+		assertThat(JournalCycles.list(basePath).length).isGreaterThan(1);
+
+		reader = new JournalReader(basePath);
+		List<String> all = IntStream.range(0, 100).mapToObj(i -> "event " + i).collect(Collectors.toList());
+		assertThat(scan(Long.MIN_VALUE, Long.MAX_VALUE, Level.TRACE)).extracting(ILoggingEvent::getFormattedMessage)
+		                                                               .containsExactlyElementsOf(all);
+		List<ILoggingEvent> events = new ArrayList<>();
+		reader.parallelScan(JournalQuery.ALL, 0, 4, events::add);
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .containsExactlyElementsOf(all);
+		assertThat(reader.previous(JournalQuery.ALL, Long.MAX_VALUE, 3)).extracting(ILoggingEvent::getFormattedMessage)
+		                                                                .containsExactly("event 97", "event 98", "event 99");
+		assertThat(reader.next(JournalQuery.ALL, 0, 3)).extracting(ILoggingEvent::getFormattedMessage)
+		                                               .containsExactly("event 0", "event 1", "event 2");
+	}
+
+	@Test
+	public void retentionKeepsTheNewestCycles() throws Exception {
+		settings.setRollSize(1000);
+		settings.setMaxCycles(2);
+		JournalWriter writer = newWriter();
+		writeEvents(writer, 0, 100);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (JournalCycles.list(basePath).length > 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		writer.close();
+
+		long[] cycles = JournalCycles.list(basePath);
+		assertThat(cycles).hasSize(2);
+		reader = new JournalReader(basePath);
+		List<ILoggingEvent> events = scan(Long.MIN_VALUE, Long.MAX_VALUE, Level.TRACE);
+		assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+		                  .doesNotContain("event 0")
+		                  .endsWith("event 99");
+	}
+
+	@Test
+	public void followMovesOnToTheNextCycle() throws Exception {
+		settings.setRollSize(1000);
+		writeIndexedEvents();
+
+		List<ILoggingEvent> events = new CopyOnWriteArrayList<>();
+		Disposable following = DurableLogUtility.follow(basePath, Level.ERROR, null, FollowWaitStrategy.DEFAULT)
+		                                        .subscribe(events::add);
+		try {
+			// a rolling journal starts a new cycle on every start
+			JournalWriter writer = newWriter();
+			writeEvents(writer, 100, 151);
+			writer.close();
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (events.size() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertThat(events).extracting(ILoggingEvent::getFormattedMessage)
+			                  .containsExactly("event 100", "event 125", "event 150");
+		}
+		finally {
+			following.dispose();
+		}
+	}
+
+	@Test
+	public void compressedCyclesAreReadTransparently() throws Exception {
+		settings.setRollSize(16 * 1024);
+		settings.setCompress(true);
+		JournalWriter writer = newWriter();
+		writeEvents(writer, 0, 2000);
+		long[] cycles = JournalCycles.list(basePath);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!CompressedCycle.exists(JournalCycles.path(basePath, cycles[cycles.length - 2]))
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		writer.close();
+
+		String first = JournalCycles.path(basePath, cycles[0]);
+		assertThat(new File(first + CompressedCycle.SUFFIX)).exists();
+		assertThat(new File(first + ".data")).doesNotExist();
+		// the size of a compressed cycle is that of its file from then on
+		assertThat(JournalCycles.size(basePath, cycles[0])).isLessThan(16 * 1024 / 2);
+
+		reader = new JournalReader(basePath);
+		assertThat(scan(Long.MIN_VALUE, Long.MAX_VALUE, Level.TRACE)).extracting(ILoggingEvent::getFormattedMessage)
+		                                                               .containsExactlyElementsOf(IntStream.range(0, 2000)
+		                                                                                                   .mapToObj(i -> "event " + i)
+		                                                                                                   .collect(Collectors.toList()));
+		assertThat(scan(1500, 1590, Level.TRACE)).hasSize(10);
+		assertThat(reader.previous(new JournalQuery(Long.MIN_VALUE, Long.MAX_VALUE, Level.ERROR, null), Long.MAX_VALUE, 80))
+				.extracting(ILoggingEvent::getFormattedMessage)
+				.startsWith("event 0", "event 25")
+				.endsWith("event 1950", "event 1975");
+	}
+
+	@Test
+	public void version1JournalsAreScannedWithoutCreatingFiles() throws IOException {
+		Chronicle chronicle = ChronicleQueueBuilder.indexed(basePath).build();
+		ExcerptAppender appender = chronicle.createAppender();
+		for (int i = 0; i < 20; i++) {
+			LoggingEvent evt = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "event {}", null, new Object[]{i});
+			evt.setTimeStamp(1000 + i * 10);
+			LoggingEventRecord.write(appender, evt, false, LoggingEventRecord.VERSION_1);
+		}
+		appender.close();
+		chronicle.close();
+		String[] files = new File(basePath).getParentFile().list();
+
+		reader = new JournalReader(basePath);
+		assertThat(scan(1050, 1090, Level.TRACE)).extracting(ILoggingEvent::getFormattedMessage)
+		                                         .containsExactly("event 5", "event 6", "event 7", "event 8", "event 9");
+		assertThat(new File(basePath).getParentFile().list()).containsExactlyInAnyOrder(files);
+	}
+
+	@Test
+	public void lz4RoundTripsRepetitiveAndIncompressibleData() {
+		byte[] repetitive = IntStream.range(0, 5000)
+		                             .mapToObj(i -> "INFO reactor.logback.Journal - event " + i + "\n")
+		                             .collect(Collectors.joining())
+		                             .getBytes(StandardCharsets.US_ASCII);
+		byte[] random = new byte[70_000];
+		new Random(42).nextBytes(random);
+		byte[] runs = new byte[1000];
+
+		for (byte[] data : Arrays.asList(repetitive, random, runs, new byte[0], new byte[]{1, 2, 3})) {
+			byte[] compressed = new byte[Lz4.maxCompressedLength(data.length)];
+			int length = Lz4.compress(data, 0, data.length, compressed, 0);
+			byte[] decompressed = new byte[data.length];
+			Lz4.decompress(compressed, 0, length, decompressed, 0, data.length);
+			assertThat(decompressed).isEqualTo(data);
+			if (data == repetitive) {
+				assertThat(length).isLessThan(data.length / 4);
+			}
+		}
+	}
+
+	@Test
+	public void followWaitStrategyIsParsedFromTheCommandLine() {
+		FollowWaitStrategy wait = DurableLogUtility.parseWait("2,3,8");
+
+		assertThat(wait.spins).isEqualTo(2);
+		assertThat(wait.yields).isEqualTo(3);
+		assertThat(wait.maxParkNanos).isEqualTo(8000);
+		assertThat(wait.idle(0)).isEqualTo(1);
+		assertThat(wait.idle(Integer.MAX_VALUE)).isEqualTo(Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void tailGoesAlongWithSearchOnlyWhenFollowing() throws ParseException {
+		assertThat(DurableLogUtility.parse("-p", basePath, "-f", "-search", "timeout", "-tail", "5")
+		                            .getOptionValue("tail")).isEqualTo("5");
+		assertThatThrownBy(() -> DurableLogUtility.parse("-p", basePath, "-search", "timeout", "-tail", "5"))
+				.isInstanceOf(ParseException.class);
+		assertThatThrownBy(() -> DurableLogUtility.parse("-p", basePath, "-head", "5", "-tail", "5"))
+				.isInstanceOf(ParseException.class);
+	}
+
+	@Test
+	public void timeArgumentsAcceptAbsoluteAndRelativeForms() {
+		long now = 1_500_000_000_000L;
+
+		assertThat(DurableLogUtility.parseTime("1234", now)).isEqualTo(1234);
+		assertThat(DurableLogUtility.parseTime("10m", now)).isEqualTo(now - 600_000);
+		assertThat(DurableLogUtility.parseTime("2h", now)).isEqualTo(now - 7_200_000);
+		assertThat(DurableLogUtility.parseTime("2017-07-14T02:40:00Z", now))
+				.isEqualTo(Instant.parse("2017-07-14T02:40:00Z").toEpochMilli());
+	}
+
+	private void writeIndexedEvents() throws IOException {
+		JournalWriter writer = newWriter();
+		writeEvents(writer, 0, 100);
+		writer.close();
+	}
+
+	private JournalWriter newWriter() throws IOException {
+		return new JournalWriter(basePath, settings, null);
+	}
+
+	private void writeEvents(JournalWriter writer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			LoggingEvent evt = new LoggingEvent(Logger.class.getName(),
+					logger,
+					i % 25 == 0 ? Level.ERROR : Level.INFO,
+					"event {}",
+					null,
+					new Object[]{i});
+			evt.setTimeStamp(1000 + i * 10);
+			writer.write(evt);
+		}
+	}
+
+	private List<ILoggingEvent> scan(long from, long to, Level level) {
+		List<ILoggingEvent> events = new ArrayList<>();
+		reader.scan(new JournalQuery(from, to, level, null), events::add);
+		return events;
+	}
+}
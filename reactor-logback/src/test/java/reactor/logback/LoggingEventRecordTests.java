@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.logback;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.AppenderBase;
+import net.openhft.chronicle.Chronicle;
+import net.openhft.chronicle.ChronicleQueueBuilder;
+import net.openhft.chronicle.ExcerptAppender;
+import net.openhft.chronicle.ExcerptTailer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoggingEventRecordTests {
+
+	String         basePath;
+	Chronicle      chronicle;
+	NameDictionary names;
+	Logger         logger;
+
+	@Before
+	public void setup() throws IOException {
+		basePath = Files.createTempDirectory("records").resolve("journal").toString();
+		chronicle = ChronicleQueueBuilder.indexed(basePath).build();
+		names = new NameDictionary(basePath);
+		logger = new LoggerContext().getLogger("records");
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		names.close();
+		chronicle.close();
+	}
+
+	@Test
+	public void version2RecordsRoundTrip() throws IOException {
+		LoggingEvent evt = newEvent();
+		ExcerptAppender appender = chronicle.createAppender();
+		LoggingEventRecord.write(appender, evt, true, names);
+		LoggingEventRecord.write(appender, evt, true, names);
+
+		// names are resolved through a fresh dictionary, as a reader process would
+		NameDictionary readNames = new NameDictionary(basePath);
+		ExcerptTailer tailer = chronicle.createTailer();
+		assertThat(tailer.nextIndex()).isTrue();
+		LoggingEventRecord first = LoggingEventRecord.read(tailer, readNames);
+		tailer.finish();
+		assertThat(tailer.nextIndex()).isTrue();
+		LoggingEventRecord second = LoggingEventRecord.read(tailer, readNames);
+		readNames.close();
+
+		for (LoggingEventRecord rec : new LoggingEventRecord[]{first, second}) {
+			assertThat(rec.getTimeStamp()).isEqualTo(evt.getTimeStamp());
+			assertThat(rec.getLevel()).isEqualTo(Level.WARN);
+			assertThat(rec.getThreadName()).isEqualTo(evt.getThreadName());
+			assertThat(rec.getLoggerName()).isEqualTo("records");
+			assertThat(rec.getFormattedMessage()).isEqualTo("user alice logged in from null");
+			assertThat(rec.getMDCPropertyMap()).isEqualTo(evt.getMDCPropertyMap());
+			assertThat(rec.getCallerData()).containsExactly(evt.getCallerData());
+			assertThat(rec.getThrowableProxy().getClassName()).isEqualTo(IllegalStateException.class.getName());
+			assertThat(rec.getThrowableProxy().getMessage()).isEqualTo("login failed");
+			assertThat(frames(rec.getThrowableProxy())).containsExactly(frames(evt.getThrowableProxy()));
+		}
+
+		IThrowableProxy cause = first.getThrowableProxy().getCause();
+		assertThat(cause.getClassName()).isEqualTo(IOException.class.getName());
+		assertThat(cause.getCommonFrames()).isEqualTo(evt.getThrowableProxy().getCause().getCommonFrames());
+		assertThat(frames(cause)).containsExactly(frames(evt.getThrowableProxy().getCause()));
+		assertThat(first.getThrowableProxy().getSuppressed()).hasSize(1);
+		assertThat(first.getThrowableProxy().getSuppressed()[0].getMessage()).isEqualTo("retry");
+	}
+
+	@Test
+	public void version1RecordsAreStillReadable() throws IOException {
+		LoggingEvent evt = newEvent();
+		LoggingEventRecord.write(chronicle.createAppender(), evt, true, LoggingEventRecord.VERSION_1);
+
+		ExcerptTailer tailer = chronicle.createTailer();
+		assertThat(tailer.nextIndex()).isTrue();
+		LoggingEventRecord rec = LoggingEventRecord.read(tailer, names);
+
+		assertThat(rec.getLevel()).isEqualTo(Level.WARN);
+		assertThat(rec.getThreadName()).isEqualTo(evt.getThreadName());
+		assertThat(rec.getFormattedMessage()).isEqualTo("user alice logged in from null");
+		assertThat(rec.getMDCPropertyMap()).isEqualTo(evt.getMDCPropertyMap());
+		assertThat(rec.getCallerData()).containsExactly(evt.getCallerData());
+		assertThat(rec.getThrowableProxy().getClassName()).isEqualTo(IllegalStateException.class.getName());
+	}
+
+	@Test
+	public void version2RecordsAreSmaller() throws IOException {
+		LoggingEvent evt = newEvent();
+		ExcerptAppender appender = chronicle.createAppender();
+		LoggingEventRecord.write(appender, evt, true, LoggingEventRecord.VERSION_1);
+		LoggingEventRecord.write(appender, evt, true, names);
+
+		ExcerptTailer tailer = chronicle.createTailer();
+		assertThat(tailer.index(0)).isTrue();
+		LoggingEventRecord.read(tailer, names);
+		long v1 = tailer.position();
+		assertThat(tailer.index(1)).isTrue();
+		LoggingEventRecord.read(tailer, names);
+		long v2 = tailer.position();
+
+		assertThat(v2 * 3).isLessThan(v1);
+	}
+
+	@Test
+	public void excerptsAreSizedFromTheEvent() {
+		LoggingEvent evt = newEvent();
+		long size = LoggingEventRecord.estimateSize(evt, new String[]{"alice", null}, evt.getCallerData());
+
+		assertThat(size).isLessThan(LoggingEventRecord.MAX_EXCERPT_SIZE);
+		assertThat(LoggingEventRecord.estimateSize(new LoggingEvent(Logger.class.getName(),
+				logger,
+				Level.INFO,
+				"started",
+				null,
+				null), null, null)).isLessThan(256);
+	}
+
+	@Test
+	public void oversizedRecordsAreSplitAndReassembled() throws IOException {
+		StringBuilder message = new StringBuilder();
+		while (message.length() < 3 * LoggingEventRecord.MAX_EXCERPT_SIZE) {
+			message.append("état ").append(message.length()).append(' ');
+		}
+		LoggingEvent big = new LoggingEvent(Logger.class.getName(),
+				logger,
+				Level.ERROR,
+				message.toString(),
+				null,
+				null);
+		LoggingEvent small = newEvent();
+		ExcerptAppender appender = chronicle.createAppender();
+		LoggingEventRecord.write(appender, big, false, names);
+		LoggingEventRecord.write(appender, small, false, names);
+
+		assertThat(chronicle.size()).isGreaterThan(3);
+
+		ExcerptTailer tailer = chronicle.createTailer();
+		assertThat(tailer.nextIndex()).isTrue();
+		assertThat(LoggingEventRecord.read(tailer, names).getMessage()).isEqualTo(message.toString());
+		tailer.finish();
+		assertThat(tailer.nextIndex()).isTrue();
+		assertThat(LoggingEventRecord.read(tailer, names).getFormattedMessage())
+				.isEqualTo("user alice logged in from null");
+
+		// seeking into the middle of a split record does not decode garbage
+		assertThat(tailer.index(1)).isTrue();
+		assertThat(LoggingEventRecord.read(tailer, names)).isNull();
+	}
+
+	@Test
+	public void boundedCallSitesAreInternedAndStoredById() throws IOException {
+		List<StackTraceElement[]> sites = new ArrayList<>();
+		AppenderBase<ILoggingEvent> capturing = new AppenderBase<ILoggingEvent>() {
+			@Override
+			protected void append(ILoggingEvent evt) {
+				sites.add(CallSites.capture(null, 2));
+			}
+		};
+		capturing.start();
+		logger.addAppender(capturing);
+		for (int i = 0; i < 2; i++) {
+			logger.info("ping");
+		}
+		logger.detachAppender(capturing);
+
+		assertThat(sites.get(0)).hasSize(2).isSameAs(sites.get(1));
+		assertThat(sites.get(0)[0].getClassName()).isEqualTo(LoggingEventRecordTests.class.getName());
+		assertThat(sites.get(0)[0].getMethodName()).isEqualTo("boundedCallSitesAreInternedAndStoredById");
+
+		LoggingEvent evt = newEvent();
+		evt.setCallerData(sites.get(0));
+		ExcerptAppender appender = chronicle.createAppender();
+		long compact = LoggingEventRecord.write(appender, evt, true, names);
+		evt.setCallerData(sites.get(0).clone());
+		long full = LoggingEventRecord.write(appender, evt, true, names);
+
+		NameDictionary readNames = new NameDictionary(basePath);
+		ExcerptTailer tailer = chronicle.createTailer();
+		assertThat(tailer.nextIndex()).isTrue();
+		LoggingEventRecord rec = LoggingEventRecord.read(tailer, readNames);
+		readNames.close();
+
+		assertThat(rec.getCallerData()).containsExactly(sites.get(0));
+		assertThat(compact).isLessThan(full);
+	}
+
+	@Test
+	public void mdcKeySetsAreReadBackAsFullMaps() throws IOException {
+		Map<String, String> mdc = new HashMap<>();
+		mdc.put("tenant", "acme");
+		mdc.put("user", "alice");
+		mdc.put("region", "eu-west-1");
+		mdc.put("session", "s-1");
+		mdc.put("client", "mobile");
+		mdc.put("version", "1.2.3");
+		List<Map<String, String>> written = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			mdc.put("traceId", "trace-" + i);
+			if (i == 4) {
+				mdc.remove("session");
+			}
+			if (i == 7) {
+				mdc.put("tenant", "globex");
+				mdc.put("user", "bob");
+				mdc.put("region", "us-east-1");
+				mdc.put("client", "web");
+			}
+			written.add(new HashMap<>(mdc));
+		}
+
+		ExcerptAppender appender = chronicle.createAppender();
+		long compact = 0;
+		long full = 0;
+		for (Map<String, String> map : written) {
+			LoggingEvent evt = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "request", null, null);
+			evt.setMDCPropertyMap(map);
+			compact += LoggingEventRecord.write(appender, evt, false, true, names);
+			full += LoggingEventRecord.write(appender, evt, false, false, names);
+		}
+
+		NameDictionary readNames = new NameDictionary(basePath);
+		ExcerptTailer tailer = chronicle.createTailer();
+		// records are read in any order, each on its own
+		for (int i = written.size() - 1; i >= 0; i--) {
+			for (int copy = 0; copy < 2; copy++) {
+				assertThat(tailer.index(2 * i + copy)).isTrue();
+				assertThat(LoggingEventRecord.read(tailer, readNames).getMDCPropertyMap())
+						.isEqualTo(written.get(i));
+			}
+		}
+		readNames.close();
+
+		// the key ids and count of every record
+		assertThat(compact + 5 * written.size()).isLessThanOrEqualTo(full);
+	}
+
+	@Test
+	public void rotatingMdcValuesKeepTheDictionaryBounded() throws IOException {
+		ExcerptAppender appender = chronicle.createAppender();
+		int size = 0;
+		for (int i = 0; i < 1000; i++) {
+			Map<String, String> mdc = new HashMap<>();
+			mdc.put("traceId", "trace-" + i);
+			mdc.put("spanId", "span-" + i);
+			mdc.put("user", "user-" + (i % 97));
+			mdc.put("requestId", String.valueOf(i));
+			LoggingEvent evt = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "request", null, null);
+			evt.setMDCPropertyMap(mdc);
+			LoggingEventRecord.write(appender, evt, false, names);
+			if (i == 0) {
+				size = names.size();
+			}
+		}
+
+		assertThat(names.size()).isEqualTo(size);
+		ExcerptTailer tailer = chronicle.createTailer();
+		assertThat(tailer.index(999)).isTrue();
+		assertThat(LoggingEventRecord.read(tailer, names).getMDCPropertyMap())
+				.containsEntry("traceId", "trace-999")
+				.containsEntry("user", "user-29");
+	}
+
+	@Test
+	public void throwablesAreStoredOnceAndResolvedLazily() throws IOException {
+		ExcerptAppender appender = chronicle.createAppender();
+		List<Long> sizes = new ArrayList<>();
+		IThrowableProxy expected = null;
+		for (int i = 0; i < 5; i++) {
+			// the same structure each time, only the messages differ
+			IllegalStateException error = new IllegalStateException("timed out after " + i + "ms",
+					new IOException("attempt " + i));
+			LoggingEvent evt = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "request failed", error, null);
+			sizes.add(LoggingEventRecord.write(appender, evt, false, names));
+			expected = evt.getThrowableProxy();
+		}
+
+		NameDictionary readNames = new NameDictionary(basePath);
+		ExcerptTailer tailer = chronicle.createTailer();
+		List<LoggingEventRecord> records = new ArrayList<>();
+		while (tailer.nextIndex()) {
+			records.add(LoggingEventRecord.read(tailer, readNames));
+			tailer.finish();
+		}
+		// resolved once the reader is done with the journal
+		readNames.close();
+
+		for (int i = 0; i < records.size(); i++) {
+			IThrowableProxy tp = records.get(i).getThrowableProxy();
+			assertThat(tp.getMessage()).isEqualTo("timed out after " + i + "ms");
+			assertThat(tp.getCause().getMessage()).isEqualTo("attempt " + i);
+			assertThat(frames(tp)).containsExactly(frames(expected));
+			assertThat(frames(tp.getCause())).containsExactly(frames(expected.getCause()));
+			assertThat(tp.getStackTraceElementProxyArray())
+					.isSameAs(records.get(0).getThrowableProxy().getStackTraceElementProxyArray());
+		}
+
+		assertThat(sizes).containsOnly(sizes.get(0));
+		// less than the frames alone would take, at a byte per field
+		assertThat(sizes.get(0)).isLessThan(4L * expected.getStackTraceElementProxyArray().length);
+	}
+
+	@Test
+	public void throwablesPastTheDictionaryCapAreWrittenInline() throws IOException {
+		ExcerptAppender appender = chronicle.createAppender();
+		int size = 0;
+		int count = NameDictionary.MAX_THROWABLES + 100;
+		for (int i = 0; i < count; i++) {
+			// a distinct structure each time, through the line number of its only frame
+			IllegalStateException error = new IllegalStateException("failure " + i);
+			error.setStackTrace(new StackTraceElement[]{new StackTraceElement("Service", "call", "Service.java", i)});
+			LoggingEvent evt = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR, "request failed", error, null);
+			LoggingEventRecord.write(appender, evt, false, names);
+			if (i == NameDictionary.MAX_THROWABLES) {
+				size = names.size();
+			}
+		}
+
+		assertThat(names.size()).isEqualTo(size);
+		ExcerptTailer tailer = chronicle.createTailer();
+		assertThat(tailer.index(count - 1)).isTrue();
+		IThrowableProxy tp = LoggingEventRecord.read(tailer, names).getThrowableProxy();
+		assertThat(tp.getMessage()).isEqualTo("failure " + (count - 1));
+		assertThat(tp.getStackTraceElementProxyArray()[0].getStackTraceElement().getLineNumber()).isEqualTo(count - 1);
+	}
+
+	private LoggingEvent newEvent() {
+		IllegalStateException error = new IllegalStateException("login failed", new IOException("disk full"));
+		error.addSuppressed(new IllegalArgumentException("retry"));
+		LoggingEvent evt = new LoggingEvent(Logger.class.getName(),
+				logger,
+				Level.WARN,
+				"user {} logged in from {}",
+				error,
+				new Object[]{"alice", null});
+		Map<String, String> mdc = new HashMap<>();
+		mdc.put("requestId", "42");
+		evt.setMDCPropertyMap(mdc);
+		evt.getCallerData();
+		return evt;
+	}
+
+	private static StackTraceElement[] frames(IThrowableProxy tp) {
+		StackTraceElementProxy[] proxies = tp.getStackTraceElementProxyArray();
+		StackTraceElement[] frames = new StackTraceElement[proxies.length];
+		for (int i = 0; i < proxies.length; i++) {
+			frames[i] = proxies[i].getStackTraceElement();
+		}
+		return frames;
+	}
+}